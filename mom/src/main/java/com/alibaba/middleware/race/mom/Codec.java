@@ -0,0 +1,92 @@
+package com.alibaba.middleware.race.mom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 消息 body 的压缩。按 topic 配置：mom.compress（none / deflate，可用 mom.compress.{topic} 按 topic 设置），
+ * body 不小于 mom.compressThreshold 字节（同样可按 topic 设置）时由生产者压缩。
+ *
+ * 只压缩 body，topic、属性、bornTime 保持原样，broker 照常过滤和建索引，原样存储和推送，不解压；
+ * 消费者在第一次 getBody 时解压。压缩后的 body 为 int 原始长度 + 压缩数据
+ */
+final class Codec {
+	static final byte NONE = 0;
+	static final byte DEFLATE = 1;
+
+	private static final int LEVEL = Integer.getInteger("mom.compressLevel", Deflater.BEST_SPEED);
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() { // 每个线程复用，避免反复分配本地内存
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(LEVEL);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private Codec() {
+	}
+
+	public static byte forTopic(String topic) {
+		String codec = System.getProperty("mom.compress." + topic, System.getProperty("mom.compress", "none"));
+		return "deflate".equalsIgnoreCase(codec) ? DEFLATE : NONE;
+	}
+
+	public static int threshold(String topic) {
+		return Integer.getInteger("mom.compressThreshold." + topic, Integer.getInteger("mom.compressThreshold", 1024));
+	}
+
+	/**
+	 * @return 压缩后的 body，不比原来小时返回 null
+	 */
+	public static byte[] compress(byte codec, byte[] body) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(body);
+		deflater.finish();
+		byte[] out = new byte[body.length];
+		int length = 4;
+		while (deflater.finished() == false && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		if (deflater.finished() == false) {
+			return null;
+		}
+		ByteBuffer.wrap(out).putInt(body.length);
+		return Arrays.copyOf(out, length);
+	}
+
+	public static byte[] decompress(byte codec, byte[] body) {
+		if (codec != DEFLATE) {
+			throw new IllegalArgumentException("unknown codec " + codec);
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(body, 4, body.length - 4);
+		byte[] out = new byte[ByteBuffer.wrap(body).getInt()];
+		try {
+			int length = 0;
+			while (length < out.length && inflater.finished() == false) {
+				int n = inflater.inflate(out, length, out.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if (length != out.length) {
+				throw new IllegalStateException("corrupt body, " + length + "/" + out.length + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalStateException(e);
+		}
+		return out;
+	}
+}
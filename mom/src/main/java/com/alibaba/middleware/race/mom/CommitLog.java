@@ -0,0 +1,455 @@
+package com.alibaba.middleware.race.mom;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 顺序追加的 commit log，由定长分段组成。所有 handler 线程的追加请求汇总到一个刷盘线程，
+ * 同一个 group commit 窗口内的请求合并成一次写和一次 force。
+ *
+ * <pre>
+ * int   crc32（覆盖其后的整个帧）
+ * int   帧长度
+ * ...   帧内容
+ * </pre>
+ */
+class CommitLog {
+	public enum FlushPolicy {
+		SYNC, // 每条消息单独写入并 force
+		GROUP, // 一个窗口内的消息合并写入，force 一次后再确认
+		ASYNC // 写入 page cache 即确认，定时 force
+	}
+
+	public interface AppendCallback {
+		void onComplete(long offset, boolean success);
+	}
+
+	public interface RecordVisitor {
+		/**
+		 * @param data
+		 *            记录中的帧，含长度前缀
+		 */
+		void onRecord(long offset, ByteBuffer data);
+	}
+
+	private static class AppendRequest {
+		private final ByteBuffer header;
+		private final ByteBuffer data;
+		private final AppendCallback callback;
+		private long offset;
+
+		public AppendRequest(ByteBuffer header, ByteBuffer data, AppendCallback callback) {
+			this.header = header;
+			this.data = data;
+			this.callback = callback;
+		}
+
+		public int size() {
+			return header.remaining() + data.remaining();
+		}
+	}
+
+	static final int HEADER_SIZE = 4;
+
+	private static final ThreadLocal<byte[]> scratches = new ThreadLocal<byte[]>() { // 追加时计算 crc 用，每个 I/O 线程一个
+		@Override
+		protected byte[] initialValue() {
+			return new byte[4096];
+		}
+	};
+
+	private final File dir;
+	private final int segmentSize;
+	private final FlushPolicy flushPolicy;
+	private final long groupCommitWindow; // 微秒
+	private final long flushInterval; // 毫秒，ASYNC 模式下的刷盘间隔
+	private final int maxBatchSize = 1024;
+
+	private final LinkedBlockingQueue<AppendRequest> requests = new LinkedBlockingQueue<AppendRequest>();
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private Segment current;
+	private volatile long flushedOffset;
+	private volatile boolean stopped = false;
+	private Thread flushThread;
+
+	public CommitLog(File dir) throws IOException {
+		this(dir, Integer.getInteger("mom.segmentSize", 1024 * 1024 * 1024),
+				FlushPolicy.valueOf(System.getProperty("mom.flushPolicy", "GROUP")),
+				Long.getLong("mom.groupCommitWindow", 0), Long.getLong("mom.flushInterval", 500));
+	}
+
+	public CommitLog(File dir, int segmentSize, FlushPolicy flushPolicy, long groupCommitWindow, long flushInterval)
+			throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.flushPolicy = flushPolicy;
+		this.groupCommitWindow = groupCommitWindow;
+		this.flushInterval = flushInterval;
+
+		if (dir.exists() == false) {
+			dir.mkdirs();
+		}
+		load();
+	}
+
+	private void load() throws IOException {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			segments.add(new Segment(dir, Long.parseLong(name), segmentSize));
+		}
+		if (segments.isEmpty()) {
+			segments.add(new Segment(dir, 0, segmentSize));
+		}
+		current = segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * 从 checkpoint 开始恢复：各分段并行校验 crc 找出有效末尾，截掉残缺的尾部，再按顺序回放 checkpoint 之后的记录
+	 */
+	public void recover(long checkpoint, RecordVisitor visitor) throws Exception {
+		int first = 0;
+		while (first < segments.size() - 1 && segments.get(first + 1).getBaseOffset() <= checkpoint) {
+			first++;
+		}
+		if (segments.get(first).contains(checkpoint) == false) {
+			checkpoint = segments.get(first).getBaseOffset();
+		}
+
+		final List<Segment> scanning = new ArrayList<Segment>(segments.subList(first, segments.size()));
+		final int[] starts = new int[scanning.size()];
+		starts[0] = (int) (checkpoint - scanning.get(0).getBaseOffset());
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(scanning.size(), Runtime.getRuntime().availableProcessors()));
+		List<Future<Integer>> ends = new ArrayList<Future<Integer>>();
+		try {
+			for (int i = 0; i < scanning.size(); i++) {
+				final Segment segment = scanning.get(i);
+				final int start = starts[i];
+				ends.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return validate(segment, start);
+					}
+				}));
+			}
+
+			for (int i = 0; i < scanning.size(); i++) {
+				Segment segment = scanning.get(i);
+				int end = ends.get(i).get();
+				replay(segment, starts[i], end, visitor);
+				segment.setPosition(end);
+
+				if (segment.truncate(end, residue(segment, end)) && i < scanning.size() - 1) { // 中间分段残缺，其后的分段都不可信
+					for (Segment discarded : scanning.subList(i + 1, scanning.size())) {
+						segments.remove(discarded);
+						discarded.delete();
+					}
+					break;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		current = segments.get(segments.size() - 1);
+		flushedOffset = getMaxOffset();
+	}
+
+	/**
+	 * @return 从 start 起连续通过 crc 校验的记录的末尾位置
+	 */
+	private int validate(Segment segment, int start) {
+		ByteBuffer buffer = segment.read(0, segment.getSize());
+		CRC32 crc32 = new CRC32();
+		byte[] scratch = new byte[4096];
+		int position = start;
+		while (position + HEADER_SIZE + 4 <= buffer.limit()) {
+			int checksum = buffer.getInt(position);
+			int length = buffer.getInt(position + HEADER_SIZE);
+			if (length <= 0 || position + HEADER_SIZE + 4 + length > buffer.limit()) {
+				break;
+			}
+
+			crc32.reset();
+			ByteBuffer frame = buffer.duplicate();
+			frame.position(position + HEADER_SIZE);
+			frame.limit(position + HEADER_SIZE + 4 + length);
+			while (frame.hasRemaining()) {
+				int n = Math.min(scratch.length, frame.remaining());
+				frame.get(scratch, 0, n);
+				crc32.update(scratch, 0, n);
+			}
+			if ((int) crc32.getValue() != checksum) {
+				break;
+			}
+			position += HEADER_SIZE + 4 + length;
+		}
+		return position;
+	}
+
+	/**
+	 * @return position 之后残留记录的末尾：按记录头中的长度逐条跳过，遇到全 0 的记录头为止。
+	 *         分段预分配时全为 0，追加是连续的，残留只会是有效末尾之后紧接着写入的记录，不必扫描到分段末尾
+	 */
+	private int residue(Segment segment, int position) {
+		while (position + HEADER_SIZE + 4 <= segment.getSize()) {
+			int checksum = segment.getInt(position);
+			int length = segment.getInt(position + HEADER_SIZE);
+			if (checksum == 0 && length == 0) {
+				return position;
+			}
+			if (length <= 0 || length > segment.getSize() - position - HEADER_SIZE - 4) { // 记录头本身残缺，只能清到分段末尾
+				return segment.getSize();
+			}
+			position += HEADER_SIZE + 4 + length;
+		}
+		return segment.getSize();
+	}
+
+	private void replay(Segment segment, int start, int end, RecordVisitor visitor) {
+		int position = start;
+		while (position < end) {
+			int length = segment.getInt(position + HEADER_SIZE);
+			visitor.onRecord(segment.getBaseOffset() + position, segment.read(position + HEADER_SIZE, 4 + length));
+			position += HEADER_SIZE + 4 + length;
+		}
+	}
+
+	public void start() {
+		flushThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (flushPolicy == FlushPolicy.ASYNC) {
+					asyncFlush();
+				} else {
+					groupCommit();
+				}
+			}
+		}, "commit-log-flush");
+		flushThread.start();
+	}
+
+	public void shutdown() {
+		stopped = true;
+		if (flushThread != null) {
+			flushThread.interrupt();
+			try {
+				flushThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		current.force();
+		for (Segment segment : segments) {
+			segment.close();
+		}
+	}
+
+	public long getMaxOffset() {
+		return current.getBaseOffset() + current.getPosition();
+	}
+
+	/**
+	 * @return 已 force 到磁盘的偏移
+	 */
+	public long getFlushedOffset() {
+		return flushedOffset;
+	}
+
+	/**
+	 * 按全局偏移读取一条记录中的帧，返回映射区上的只读视图
+	 */
+	public ByteBuffer read(long offset, int size) {
+		Segment segment = findSegment(offset);
+		if (segment == null) {
+			return null;
+		}
+		return segment.read((int) (offset - segment.getBaseOffset()) + HEADER_SIZE, size);
+	}
+
+	/**
+	 * 滚动时新分段从上一段的写入位置开始，不是从上一段的末尾，所以除最后一段外，以下一段的起始偏移为上界：
+	 * 取起始偏移不大于 offset 的最后一个分段
+	 */
+	private Segment findSegment(long offset) {
+		List<Segment> snapshot = segments;
+		int low = 0;
+		int high = snapshot.size() - 1;
+		int found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (snapshot.get(mid).getBaseOffset() > offset) {
+				high = mid - 1;
+			} else {
+				found = mid;
+				low = mid + 1;
+			}
+		}
+		if (found == -1) {
+			return null;
+		}
+		while (found + 1 < snapshot.size() && snapshot.get(found + 1).getBaseOffset() <= offset) { // 查找期间滚出了新分段
+			found++;
+		}
+		Segment segment = snapshot.get(found);
+		if (found == snapshot.size() - 1 && segment.contains(offset) == false) {
+			return null;
+		}
+		return segment;
+	}
+
+	/**
+	 * @param data
+	 *            完整的帧，crc 在调用线程上计算
+	 */
+	public void append(ByteBuffer data, AppendCallback callback) {
+		if (HEADER_SIZE + data.remaining() > segmentSize) {
+			callback.onComplete(-1, false);
+			return;
+		}
+
+		CRC32 crc32 = new CRC32();
+		if (data.hasArray()) {
+			crc32.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else { // 直接内存，分段读进线程复用的小缓冲区计算，不为每条消息分配和整体拷贝
+			byte[] scratch = scratches.get();
+			ByteBuffer frame = data.duplicate();
+			while (frame.hasRemaining()) {
+				int n = Math.min(scratch.length, frame.remaining());
+				frame.get(scratch, 0, n);
+				crc32.update(scratch, 0, n);
+			}
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(0, (int) crc32.getValue());
+
+		requests.add(new AppendRequest(header, data, callback));
+	}
+
+	private void groupCommit() {
+		List<AppendRequest> batch = new ArrayList<AppendRequest>();
+		while (stopped == false) {
+			try {
+				batch.add(requests.take());
+				if (flushPolicy == FlushPolicy.GROUP) {
+					collect(batch);
+				}
+				write(batch);
+				current.force();
+				flushedOffset = getMaxOffset();
+				complete(batch, true);
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				e.printStackTrace();
+				complete(batch, false);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void asyncFlush() {
+		List<AppendRequest> batch = new ArrayList<AppendRequest>();
+		long lastFlush = System.currentTimeMillis();
+		while (stopped == false) {
+			try {
+				AppendRequest request = requests.poll(flushInterval, TimeUnit.MILLISECONDS);
+				if (request != null) {
+					batch.add(request);
+					collect(batch);
+					write(batch);
+					complete(batch, true);
+				}
+				if (System.currentTimeMillis() - lastFlush >= flushInterval) {
+					long offset = getMaxOffset();
+					current.force();
+					flushedOffset = offset;
+					lastFlush = System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				e.printStackTrace();
+				complete(batch, false);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * 在 group commit 窗口内继续收集请求
+	 */
+	private void collect(List<AppendRequest> batch) throws InterruptedException {
+		requests.drainTo(batch, maxBatchSize - batch.size());
+		if (groupCommitWindow > 0) {
+			long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(groupCommitWindow);
+			long left;
+			while (batch.size() < maxBatchSize && (left = deadline - System.nanoTime()) > 0) {
+				AppendRequest request = requests.poll(left, TimeUnit.NANOSECONDS);
+				if (request == null) {
+					break;
+				}
+				batch.add(request);
+				requests.drainTo(batch, maxBatchSize - batch.size());
+			}
+		}
+	}
+
+	/**
+	 * 将一批请求写入当前分段，放不下时先 force 当前分段再滚动到下一个分段
+	 */
+	private void write(List<AppendRequest> batch) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+		int count = 0;
+		int length = 0;
+		for (AppendRequest request : batch) {
+			int size = request.size();
+			if (size > current.remaining() - length) {
+				current.write(Arrays.copyOf(buffers, count), length);
+				current.force();
+				roll();
+				count = 0;
+				length = 0;
+			}
+			request.offset = current.getBaseOffset() + current.getPosition() + length;
+			buffers[count++] = request.header;
+			buffers[count++] = request.data;
+			length += size;
+		}
+		if (count > 0) {
+			current.write(Arrays.copyOf(buffers, count), length);
+		}
+	}
+
+	private void roll() throws IOException {
+		Segment segment = new Segment(dir, current.getBaseOffset() + current.getPosition(), segmentSize);
+		segments.add(segment);
+		current = segment;
+	}
+
+	private void complete(List<AppendRequest> batch, boolean success) {
+		for (AppendRequest request : batch) {
+			try {
+				request.callback.onComplete(success ? request.offset : -1, success);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
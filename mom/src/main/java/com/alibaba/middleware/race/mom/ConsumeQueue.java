@@ -0,0 +1,155 @@
+package com.alibaba.middleware.race.mom;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 单个 topic 的消费队列索引，第 n 条消息对应一个定长条目：
+ *
+ * <pre>
+ * long  commit log 全局偏移（分段 + 段内位置）
+ * int   消息长度
+ * </pre>
+ *
+ * 条目按逻辑偏移顺序追加在定长分段中，索引本身也是映射文件，不占用堆。同时维护 topic 的稀疏时间索引
+ */
+class ConsumeQueue {
+	static final int ENTRY_SIZE = 12;
+
+	private final File dir;
+	private final int segmentSize;
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private final TimeIndex timeIndex;
+	private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+	private final ByteBuffer[] entries = new ByteBuffer[] { entry };
+	private Segment current;
+	private volatile long maxOffset;
+
+	public ConsumeQueue(File dir, TimeIndex timeIndex) throws IOException {
+		this(dir, Integer.getInteger("mom.consumeQueueEntries", 300000) * ENTRY_SIZE, timeIndex);
+	}
+
+	public ConsumeQueue(File dir, int segmentSize, TimeIndex timeIndex) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.timeIndex = timeIndex;
+
+		if (dir.exists() == false) {
+			dir.mkdirs();
+		}
+		load();
+	}
+
+	private void load() throws IOException {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			Segment segment = new Segment(dir, Long.parseLong(name), segmentSize);
+			int position = 0;
+			while (position < segmentSize && segment.getInt(position + 8) > 0) {
+				position += ENTRY_SIZE;
+			}
+			segment.setPosition(position);
+			segments.add(segment);
+		}
+		if (segments.isEmpty()) {
+			segments.add(new Segment(dir, 0, segmentSize));
+		}
+		current = segments.get(segments.size() - 1);
+		maxOffset = (current.getBaseOffset() + current.getPosition()) / ENTRY_SIZE;
+	}
+
+	/**
+	 * 追加一条索引，返回该消息在 topic 内的逻辑偏移。只由 commit log 的回调线程按存储顺序调用
+	 */
+	public synchronized long put(long offset, int size, long bornTime) throws IOException {
+		if (current.remaining() < ENTRY_SIZE) {
+			current.force();
+			current = new Segment(dir, current.getBaseOffset() + current.getPosition(), segmentSize);
+			segments.add(current);
+		}
+
+		entry.clear();
+		entry.putLong(offset).putInt(size);
+		entry.flip();
+		current.write(entries, ENTRY_SIZE);
+		timeIndex.put(maxOffset, bornTime);
+		return maxOffset++;
+	}
+
+	/**
+	 * 删除指向 commit log 中 offset 及之后位置的条目，恢复时这部分由 commit log 重新回放
+	 */
+	public synchronized void truncate(long offset) {
+		long index = maxOffset;
+		while (index > getMinOffset() && getOffset(index - 1) >= offset) {
+			index--;
+		}
+		if (index == maxOffset) {
+			return;
+		}
+
+		long position = index * ENTRY_SIZE;
+		for (Segment segment : segments) {
+			if (segment.getBaseOffset() > position && segment != segments.get(0)) {
+				segments.remove(segment);
+				segment.delete();
+			}
+		}
+		current = segments.get(segments.size() - 1);
+		int end = current.getPosition();
+		current.setPosition((int) (position - current.getBaseOffset()));
+		current.truncate(current.getPosition(), end);
+		maxOffset = index;
+	}
+
+	public TimeIndex getTimeIndex() {
+		return timeIndex;
+	}
+
+	public long getMinOffset() {
+		return segments.get(0).getBaseOffset() / ENTRY_SIZE;
+	}
+
+	public long getMaxOffset() {
+		return maxOffset;
+	}
+
+	/**
+	 * @return 第 index 条消息在 commit log 中的全局偏移
+	 */
+	public long getOffset(long index) {
+		Segment segment = findSegment(index * ENTRY_SIZE);
+		return segment.getLong((int) (index * ENTRY_SIZE - segment.getBaseOffset()));
+	}
+
+	/**
+	 * @return 第 index 条消息的长度
+	 */
+	public int getSize(long index) {
+		Segment segment = findSegment(index * ENTRY_SIZE);
+		return segment.getInt((int) (index * ENTRY_SIZE - segment.getBaseOffset()) + 8);
+	}
+
+	private Segment findSegment(long position) {
+		List<Segment> snapshot = segments;
+		long first = snapshot.get(0).getBaseOffset();
+		return snapshot.get((int) ((position - first) / segmentSize));
+	}
+
+	public void flush() throws IOException {
+		current.force();
+		timeIndex.flush();
+	}
+
+	public void close() {
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		timeIndex.close();
+	}
+}
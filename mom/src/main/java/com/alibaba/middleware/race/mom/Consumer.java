@@ -12,7 +12,8 @@ public interface Consumer {
 	 * @param topic
 	 *            只接受该topic的消息
 	 * @param filter
-	 *            属性过滤条件，例如 area=hz，表示只接受area属性为hz的消息。消息的过滤要在服务端进行
+	 *            属性过滤条件，例如 area=hz，表示只接受area属性为hz的消息。多个条件用 & 连接，
+	 *            例如 area=hz&type=1，消息的属性需满足全部条件，可以带有其他属性。消息的过滤要在服务端进行
 	 * @param listener
 	 */
 	void subscribe(String topic, String filter, MessageListener listener);
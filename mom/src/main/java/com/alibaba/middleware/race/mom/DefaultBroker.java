@@ -1,23 +1,23 @@
 package com.alibaba.middleware.race.mom;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.RandomAccessFile;
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
-import com.google.gson.Gson;
-import com.google.gson.internal.LinkedTreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
@@ -26,200 +26,1060 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
-import io.netty.util.concurrent.EventExecutorGroup;
-import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
 public class DefaultBroker {
 	private static Charset charset = Charset.forName("UTF-8");
 
-	private ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
-	private Map<Channel, Information> consumers = new HashMap<Channel, Information>();
-	private Map<String, Message> messages = new HashMap<String, Message>();
-	private Map<Channel, LinkedList<String>> repositories = new HashMap<Channel, LinkedList<String>>();
-	private Map<String, Counter> counters = new HashMap<String, Counter>();
-	
-	private RandomAccessFile randomAccessFile;
-	private FileChannel fileChannel;
-	
+	// 推送结果
+	private static final int PUSHED = 0;
+	private static final int UNMATCHED = 1; // 没有匹配的成员
+	private static final int BLOCKED = 2; // 匹配的成员没有剩余额度，消息留在存储中
+
+	private Map<Channel, Information> consumers = new ConcurrentHashMap<Channel, Information>();
+	private ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+	private ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+
+	private MessageStore store;
+	private ExecutorService[] dispatchers; // 按 topic 分配，保证同一 topic 按存储顺序推送
+	private HashedWheelTimer timer = new HashedWheelTimer(); // 确认期限和拉取的最长等待
+	private long ackTimeout = Long.getLong("mom.ackTimeout", 10000); // 毫秒，每次重投翻倍
+	private int maxPrefetch = Integer.getInteger("mom.maxPrefetch", 65536); // 消费者额度的上限
+	private int pullMaxBytes = Integer.getInteger("mom.pullMaxBytes", 4 * 1024 * 1024); // 一次拉取响应的消息字节数上限
+
 	public DefaultBroker() {
 		try {
 			String separator = System.getProperty("file.separator").equals("\\") == true ? "\\\\" : "/";
-			
+
 			String path = System.getProperty("user.home") + separator + "store";
 			File file = new File(path);
 			if (file.exists() == false) {
 				file.mkdir();
 			}
-						
-			randomAccessFile = new RandomAccessFile(path + separator + "ali_middleware_567.txt", "rw");
-			fileChannel = randomAccessFile.getChannel();
+
+			store = new MessageStore(file);
+			store.setCheckpointListener(new MessageStore.CheckpointListener() {
+				@Override
+				public void beforeCheckpoint() {
+					commitOffsets();
+				}
+			});
+
+			dispatchers = new ExecutorService[Integer.getInteger("mom.dispatchThreads", Runtime.getRuntime()
+					.availableProcessors())];
+			for (int i = 0; i < dispatchers.length; i++) {
+				dispatchers[i] = Executors.newSingleThreadExecutor();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	private class Information {
-		private String topic;
-		private LinkedTreeMap<String, String> properties;
+		private Channel channel;
+		private MessageFilter filter;
+		private Subscription subscription;
+		private long[] window; // 已推送未确认消息的逻辑偏移，按推送序号取模存放，-1 为空，窗口大小即消费者的额度
+		private int[] generations; // 与 window 一一对应，推送时订阅的重置次数
+		private long[] deadlines; // 与 window 一一对应的确认期限
+		private long sequence = 0; // 下一个推送序号
+		private long ackSequence = 0; // 之前的推送均已确认
+		private LongQueue retry = new LongQueue(); // 广播消费时超时待重投给该成员的逻辑偏移
+
+		public Information(Channel channel, Message message, Subscription subscription, int prefetch) {
+			this.channel = channel;
+			this.filter = MessageFilter.compile(message.getProperties());
+			this.subscription = subscription;
+			this.window = new long[prefetch];
+			this.generations = new int[prefetch];
+			this.deadlines = new long[prefetch];
+			Arrays.fill(window, -1);
+		}
 
-		public Information(Message message) {
-			this.topic = message.getTopic();
+		public boolean filter(Message message) { // 属性过滤
+			return filter.match(message);
+		}
+
+		public boolean hasCredit() { // 窗口未满且出站缓冲未超过高水位
+			return sequence - ackSequence < window.length && channel.isWritable();
+		}
 
-			try {
-				Field field = Message.class.getDeclaredField("properties");
-				field.setAccessible(true);
-				this.properties = (LinkedTreeMap<String, String>) field.get(message);
-			} catch (Exception e) {
-				e.printStackTrace();
+		public long get(long sequence) {
+			return window[(int) (sequence % window.length)];
+		}
+
+		public void set(long sequence, long queueOffset, long deadline) {
+			int index = (int) (sequence % window.length);
+			window[index] = queueOffset;
+			generations[index] = subscription.generation;
+			deadlines[index] = deadline;
+		}
+
+		public boolean expired(long sequence, long now) { // 窗口之外的序号已确认，槽位可能已被之后的推送占用
+			int index = (int) (sequence % window.length);
+			return sequence >= ackSequence && sequence < this.sequence && window[index] >= 0 && deadlines[index] <= now;
+		}
+
+		/**
+		 * 移出窗口，返回推送的逻辑偏移；空槽位或订阅重置之前的推送返回 -1
+		 */
+		public long remove(long sequence) {
+			int index = (int) (sequence % window.length);
+			long queueOffset = window[index];
+			window[index] = -1;
+			return generations[index] == subscription.generation ? queueOffset : -1;
+		}
+
+		public void advance() { // 跳过已确认的序号，归还额度
+			while (ackSequence < sequence && get(ackSequence) < 0) {
+				ackSequence++;
 			}
 		}
+	}
 
-		public boolean filter(Message message) { // 属性过滤
-			Information information = new Information(message);
-			if (information.topic.equals(this.topic)) {
-				if (this.properties.isEmpty() || information.properties.equals(this.properties)) {
-					return true;
+	/**
+	 * 订阅中已推送未确认消息的确认计数，按逻辑偏移索引到槽位，各项计数放在按槽位下标的基本类型数组里。
+	 * 消息确认后槽位放回空闲栈复用，数组只在在途消息超过容量时按 2 倍扩容，稳定状态下推送和确认不分配对象。
+	 * 只在 topic 的推送线程上读写
+	 */
+	private class Counters {
+		private LongIntMap slots = new LongIntMap(64); // 逻辑偏移 》 槽位
+		private int[] x = new int[64]; // ACK数
+		private int[] y = new int[64]; // 推送数
+		private int[] attempts = new int[64]; // 超时次数，决定下一次的确认期限
+		private long[] msgIdHigh = new long[64]; // 只用于日志
+		private long[] msgIdLow = new long[64];
+		private Information[] excluded = new Information[64]; // 集群消费时上一次超时的成员，重投时优先选择其他成员
+		private int[] free = new int[64]; // 空闲槽位
+		private int freeCount = 0;
+		private int used = 0; // 分配过的槽位数
+
+		public int get(long queueOffset) {
+			return slots.get(queueOffset);
+		}
+
+		public int add(long queueOffset, Message message) {
+			int slot;
+			if (freeCount > 0) {
+				slot = free[--freeCount];
+			} else {
+				if (used == x.length) {
+					grow();
+				}
+				slot = used++;
+			}
+			x[slot] = 0;
+			y[slot] = 0;
+			attempts[slot] = 0;
+			msgIdHigh[slot] = message.getIdHigh();
+			msgIdLow[slot] = message.getIdLow();
+			slots.put(queueOffset, slot);
+			return slot;
+		}
+
+		public void remove(long queueOffset) {
+			int slot = slots.remove(queueOffset);
+			if (slot >= 0) {
+				excluded[slot] = null;
+				free[freeCount++] = slot;
+			}
+		}
+
+		public boolean check(int slot) {
+			return x[slot] == y[slot];
+		}
+
+		public int size() {
+			return slots.size();
+		}
+
+		public void clear() {
+			slots.clear();
+			Arrays.fill(excluded, null);
+			freeCount = 0;
+			used = 0;
+		}
+
+		private void grow() {
+			int length = x.length * 2;
+			x = Arrays.copyOf(x, length);
+			y = Arrays.copyOf(y, length);
+			attempts = Arrays.copyOf(attempts, length);
+			msgIdHigh = Arrays.copyOf(msgIdHigh, length);
+			msgIdLow = Arrays.copyOf(msgIdLow, length);
+			excluded = Arrays.copyOf(excluded, length);
+			free = Arrays.copyOf(free, length);
+		}
+	}
+
+	/**
+	 * 一个 topic 的订阅与过滤索引。broker 按 topic 分片，该 topic 的实时推送、订阅变更、确认都作为任务提交到
+	 * 同一个推送线程上按顺序执行，订阅状态只由该线程读写，不需要加锁，不同 topic 之间互不阻塞
+	 */
+	private class Topic {
+		private String name;
+		private ExecutorService dispatcher;
+		private FilterIndex<Information> index = new FilterIndex<Information>(); // (key, value) 》 成员
+		private List<Information> matched = new ArrayList<Information>();
+		private long dispatchedOffset; // 之前的消息均已按索引实时推送
+		private ArrayDeque<PullRequest> pulls = new ArrayDeque<PullRequest>(); // 没有新消息、挂起等待的拉取
+		private Deadlines[] deadlines = new Deadlines[7]; // 按重投次数分开，确认期限为 ackTimeout << 次数
+
+		public Topic(String name, ExecutorService dispatcher) {
+			this.name = name;
+			this.dispatcher = dispatcher;
+			for (int i = 0; i < deadlines.length; i++) {
+				deadlines[i] = new Deadlines(this);
+			}
+		}
+	}
+
+	/**
+	 * 一个 topic 中确认期限长度相同的推送，按推送顺序排在环形队列里，期限随之递增。只为队首在 timer 上登记一个定时，
+	 * 到期时在推送线程上取出所有到期的推送，仍未确认的按确认超时重投，已确认的直接丢弃，再为新的队首登记。
+	 * 推送时只入队，不为每条消息登记定时任务，也不扫描窗口
+	 */
+	private class Deadlines implements TimerTask, Runnable {
+		private Topic topic;
+		private Information[] members = new Information[64];
+		private long[] sequences = new long[64];
+		private long[] times = new long[64];
+		private int head = 0;
+		private int tail = 0;
+		private boolean armed = false; // 已为队首登记定时
+
+		public Deadlines(Topic topic) {
+			this.topic = topic;
+		}
+
+		public void add(Information member, long sequence, long deadline) {
+			members[tail] = member;
+			sequences[tail] = sequence;
+			times[tail] = deadline;
+			tail = (tail + 1) & (members.length - 1);
+			if (tail == head) {
+				grow();
+			}
+			if (armed == false) {
+				arm();
+			}
+		}
+
+		private void arm() {
+			armed = true;
+			timer.newTimeout(this, Math.max(times[head] - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void run(Timeout timeout) { // timer 线程，转交给推送线程
+			if (topic.dispatcher.isShutdown() == false) {
+				topic.dispatcher.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			armed = false;
+			long now = System.currentTimeMillis();
+			while (head != tail && times[head] <= now) {
+				Information member = members[head];
+				long sequence = sequences[head];
+				members[head] = null;
+				head = (head + 1) & (members.length - 1);
+				if (member.expired(sequence, now)) {
+					redeliver(member, sequence, "确认超时"); // 重投的推送排在之后的队列或本队列末尾
 				}
 			}
-			return false;
+			if (head != tail && armed == false) {
+				arm();
+			}
+		}
+
+		private void grow() { // 队列已满，head == tail
+			int length = members.length;
+			Information[] grownMembers = new Information[length * 2];
+			long[] grownSequences = new long[length * 2];
+			long[] grownTimes = new long[length * 2];
+			System.arraycopy(members, head, grownMembers, 0, length - head);
+			System.arraycopy(members, 0, grownMembers, length - head, head);
+			System.arraycopy(sequences, head, grownSequences, 0, length - head);
+			System.arraycopy(sequences, 0, grownSequences, length - head, head);
+			System.arraycopy(times, head, grownTimes, 0, length - head);
+			System.arraycopy(times, 0, grownTimes, length - head, head);
+			members = grownMembers;
+			sequences = grownSequences;
+			times = grownTimes;
+			head = 0;
+			tail = length;
 		}
 	}
 
-	private class Counter {
-		private int x = 0;
-		private int y = 0;
+	/**
+	 * 一次拉取。没有新消息时挂在 topic 上，有新消息写入或 maxWait 到期时回复，只在 topic 的推送线程上读写
+	 */
+	private class PullRequest {
+		private Channel channel;
+		private long sequence; // 请求号，原样带回
+		private long offset;
+		private int maxMessages;
+		private long maxWait;
+		private Timeout timeout;
+
+		public PullRequest(Channel channel, long sequence, long offset, int maxMessages, long maxWait) {
+			this.channel = channel;
+			this.sequence = sequence;
+			this.offset = offset;
+			this.maxMessages = maxMessages;
+			this.maxWait = maxWait;
+		}
+	}
+
+	/**
+	 * 一个 (topic, groupId) 的消费进度。追赶时从 nextOffset 逐条读取存储；追上之后由 topic 的过滤索引实时推送，
+	 * 不匹配的消息不再经过该订阅。ackOffset() 之前的消息均已确认并随 checkpoint 持久化，
+	 * 重启或消费者全部断开后从 ackOffset() 重新推送，跳过其后已确认的消息。组内成员按 model 分摊或各自收到全部消息。
+	 * 成员额度用尽时订阅退回追赶状态，之后的消息留在存储中，额度归还后再按需读出
+	 */
+	private class Subscription {
+		private Topic topic;
+		private String groupId;
+		private long nextOffset; // 追赶时下一条待读取；实时推送时之前的消息均已处理
+		private boolean live; // 已追上存储，由过滤索引推送
+		private long lastMatched = -1; // 同一条消息匹配多个成员时只处理一次
+		private MessageModel model = MessageModel.CLUSTERING;
+		private int next = 0; // 集群消费时轮询的起点
+		private OffsetWindow states; // ackOffset() 之后已推送未确认和已确认的消息
+		private Counters counters = new Counters();
+		private LongQueue retry = new LongQueue(); // 成员离开后等待额度重新推送的逻辑偏移
+		private List<Information> members = new ArrayList<Information>();
+		private int generation = 0; // 重置消费位置的次数
+
+		public Subscription(Topic topic, String groupId, long ackOffset) {
+			this.topic = topic;
+			this.groupId = groupId;
+			this.nextOffset = ackOffset;
+			this.states = new OffsetWindow(ackOffset);
+		}
 
-		public void incrementX() {
-			this.x++; // ACK数
+		public long ackOffset() { // 推进到第一条未确认的推送，回收之前已确认的记录
+			long offset = live ? Math.max(nextOffset, topic.dispatchedOffset) : nextOffset;
+			return states.advance(offset);
 		}
 
-		public void incrementY() {
-			this.y++; // 推送数
+		public void ack(long queueOffset) {
+			counters.remove(queueOffset);
+			states.set(queueOffset, OffsetWindow.ACKED);
+			ackOffset();
 		}
 
-		public boolean check() {
-			if (this.x == this.y) {
-				return true;
+		/**
+		 * 推送一条新消息，只有推送成功时才记录
+		 */
+		public int deliver(long queueOffset, Frame frame) {
+			int slot = counters.add(queueOffset, frame.getMessage());
+			int result = push(frame, queueOffset, slot);
+			if (result == PUSHED) {
+				states.set(queueOffset, OffsetWindow.INFLIGHT);
 			} else {
-				return false;
+				counters.remove(queueOffset);
+			}
+			return result;
+		}
+
+		/**
+		 * 广播消费时推送给所有匹配的成员；集群消费时在匹配的成员中轮询选出一个，成员加入或离开后下一条消息即按新的成员列表分配
+		 */
+		public int push(Frame frame, long queueOffset, int slot) {
+			boolean matched = false;
+			if (model == MessageModel.BROADCASTING) { // 任一匹配的成员额度用尽都要等待
+				for (Information member : members) {
+					if (member.filter(frame.getMessage())) {
+						if (member.hasCredit() == false) {
+							return BLOCKED;
+						}
+						matched = true;
+					}
+				}
+				if (matched == false) {
+					return UNMATCHED;
+				}
+				for (Information member : members) {
+					if (member.filter(frame.getMessage())) {
+						push(member, frame, queueOffset, slot);
+					}
+				}
+				return PUSHED;
+			}
+
+			Information excluded = counters.excluded[slot];
+			int size = members.size();
+			for (int i = 0; i < size; i++) {
+				Information member = members.get((next + i) % size);
+				if (member != excluded && member.filter(frame.getMessage())) {
+					matched = true;
+					if (member.hasCredit()) {
+						next = (next + i + 1) % size;
+						push(member, frame, queueOffset, slot);
+						return PUSHED;
+					}
+				}
+			}
+			if (excluded != null && members.contains(excluded)) { // 只剩超时的成员匹配
+				if (excluded.filter(frame.getMessage())) {
+					matched = true;
+					if (excluded.hasCredit()) {
+						push(excluded, frame, queueOffset, slot);
+						return PUSHED;
+					}
+				}
 			}
+			return matched ? BLOCKED : UNMATCHED;
+		}
+
+		public void push(Information member, Frame frame, long queueOffset, int slot) {
+			long sequence = member.sequence++;
+			int level = Math.min(counters.attempts[slot], topic.deadlines.length - 1);
+			long deadline = System.currentTimeMillis() + (ackTimeout << level);
+			member.set(sequence, queueOffset, deadline);
+			topic.deadlines[level].add(member, sequence, deadline);
+			counters.y[slot]++;
+			member.channel.writeAndFlush(frame.push(sequence));
 		}
 	}
 
+	/**
+	 * 使用 epoll 时可用 mom.acceptors 开多个监听 socket，以 SO_REUSEPORT 绑定同一端口，由内核分摊新连接
+	 */
 	public void start() {
-		EventLoopGroup bossGroup = new NioEventLoopGroup();
-		EventLoopGroup workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
-		final EventExecutorGroup group = new DefaultEventExecutorGroup(30);
-		
+		int acceptors = Transport.EPOLL ? Math.max(Integer.getInteger("mom.acceptors", 1), 1) : 1;
+		EventLoopGroup bossGroup = Transport.newGroup(acceptors);
+		EventLoopGroup workerGroup = Transport.newGroup(Runtime.getRuntime().availableProcessors());
+		final FrameEncoder encoder = new FrameEncoder();
+
 		try {
+			store.start();
+
 			ServerBootstrap b = new ServerBootstrap();
-			b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+			b.group(bossGroup, workerGroup).channel(Transport.serverChannel())
 					.childHandler(new ChannelInitializer<SocketChannel>() {
 						@Override
 						public void initChannel(SocketChannel ch) {
 							ChannelPipeline pipeline = ch.pipeline();
-							pipeline.addLast("framer",
-									new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
-							pipeline.addLast("decoder", new StringDecoder());
-							pipeline.addLast("encoder", new StringEncoder());
-							pipeline.addLast(group, "handler", new DefaultBrokerHandler());
+							pipeline.addLast("flush", new FlushConsolidator()); // 确认和推送合并 flush
+							pipeline.addLast("decoder", new FrameDecoder(true)); // 生产帧保留原始字节，落盘和推送不再编码
+							pipeline.addLast("encoder", encoder);
+							pipeline.addLast("handler", new DefaultBrokerHandler()); // 只做转交，不阻塞 I/O 线程
 						}
-					}).option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_REUSEADDR, true)
+					}).option(ChannelOption.SO_REUSEADDR, true)
+					.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+					.childOption(ChannelOption.TCP_NODELAY, Transport.TCP_NODELAY)
 					.childOption(ChannelOption.SO_KEEPALIVE, true);
+			if (acceptors > 1) {
+				b.option(EpollChannelOption.SO_REUSEPORT, true);
+			}
 
-			ChannelFuture f = b.bind(9999).sync();
-			f.channel().closeFuture().sync();
+			ChannelFuture[] futures = new ChannelFuture[acceptors];
+			for (int i = 0; i < acceptors; i++) { // 依次注册到 boss 组中不同的线程
+				futures[i] = b.bind(9999).sync();
+			}
+			for (ChannelFuture f : futures) {
+				f.channel().closeFuture().sync();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
 			bossGroup.shutdownGracefully();
 			workerGroup.shutdownGracefully();
-			group.shutdownGracefully();
+			timer.stop();
+			commitOffsets();
+			for (ExecutorService dispatcher : dispatchers) {
+				dispatcher.shutdown();
+			}
+			for (ExecutorService dispatcher : dispatchers) {
+				try {
+					dispatcher.awaitTermination(3, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			store.shutdown();
 		}
 	}
 
-	private class DefaultBrokerHandler extends SimpleChannelInboundHandler<String> {
-		private Message ack = new Message();
-		private ByteBuffer byteBuffer = ByteBuffer.allocateDirect(256);
-		
-		public DefaultBrokerHandler() {
-			ack.setBody("ACK".getBytes(charset));
-		}
-		
+	private class DefaultBrokerHandler extends SimpleChannelInboundHandler<Frame> {
+
 		@Override
-		public void channelRead0(ChannelHandlerContext ctx, String string) throws Exception {
-			Message message = new Gson().fromJson(string, Message.class);
+		public void channelRead0(final ChannelHandlerContext ctx, Frame frame) throws Exception {
+			Message message = frame.getMessage();
 
-			if (Arrays.equals(message.getBody(), "ACK".getBytes(charset))) { // consumer 》 broker，消费
-				String msgId = message.getMsgId();
+			if (frame.getOpcode() == Frame.ACK) { // consumer 》 broker，批量消费确认
+				final Information information = consumers.get(ctx.channel());
+				if (information == null) {
+					return;
+				}
+				ByteBuffer body = ByteBuffer.wrap(message.getBody());
+				final long sequence = body.getLong();
+				final BitSet acked = BitSet.valueOf(body);
 
-				repositories.get(ctx.channel()).remove(msgId);
-				counters.get(msgId).incrementX();
-				if (counters.get(msgId).check()) {
-					messages.remove(msgId);
-					System.out.println("消息队列 %" + messages.size());
-					System.out.println("推送成功 #" + msgId);
+				information.subscription.topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						ack(information, sequence, acked);
+					}
+				});
+			} else if (frame.getOpcode() == Frame.NACK) { // consumer 》 broker，消费失败
+				final Information information = consumers.get(ctx.channel());
+				if (information == null) {
+					return;
 				}
-			} else if (Arrays.equals(message.getBody(), "SUB".getBytes(charset))) { // consumer 》 broker，订阅
-				channels.add(ctx.channel());
-				consumers.put(ctx.channel(), new Information(message));
-				repositories.put(ctx.channel(), new LinkedList<String>());
+				final long sequence = ByteBuffer.wrap(message.getBody()).getLong();
 
-				ctx.writeAndFlush(new Gson().toJson(ack) + "\r\n");
-			} else { // producer 》 broker，生产；broker 》 consumer，推送
-				String msgId = message.getMsgId();
+				information.subscription.topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						reject(information, sequence);
+					}
+				});
+			} else if (frame.getOpcode() == Frame.PULL) { // consumer 》 broker，拉取
+				ByteBuffer body = ByteBuffer.wrap(message.getBody()); // offset + maxMessages + maxWait
+				final PullRequest request = new PullRequest(ctx.channel(), message.getIdLow(),
+						body.getLong(), body.getInt(), body.getLong());
+				final Topic topic = getTopic(message.getTopic());
 
-//				System.out.println("有新消息 @" + msgId);
+				topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						pull(topic, request);
+					}
+				});
+			} else if (frame.getOpcode() == Frame.SEEK) { // consumer 》 broker，定位，推送消费者同时重置订阅
+				ByteBuffer body = ByteBuffer.wrap(message.getBody());
+				final byte by = body.get();
+				final long value = body.getLong();
+				final long sequence = message.getIdLow();
+				final String name = message.getTopic();
+				final Information information = consumers.get(ctx.channel());
+				final Topic topic = information != null && information.subscription.topic.name.equals(name) ? information.subscription.topic
+						: getTopic(name);
 
-				messages.put(msgId, message);
-				counters.put(msgId, new Counter());
-				for (Channel channel : channels) {
-					if (consumers.get(channel).filter(message)) {
-						repositories.get(channel).add(msgId);
-						counters.get(msgId).incrementY();
-						channel.writeAndFlush(string + "\r\n");
+				topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						long offset = by == 0 ? value : store.getOffsetByTime(name, value);
+						offset = Math.min(Math.max(offset, store.getMinOffset(name)), store.getMaxOffset(name));
+						if (information != null && information.subscription.topic == topic) {
+							seek(information.subscription, offset);
+						}
+						Message reply = new Message();
+						reply.setId(0, sequence);
+						reply.setBody(ByteBuffer.allocate(8).putLong(offset).array());
+						ctx.writeAndFlush(new Frame(Frame.SEEK, reply));
 					}
+				});
+			} else if (frame.getOpcode() == Frame.SUB) { // consumer 》 broker，订阅
+				String invalid = message.getTopic() == null ? "缺少 topic" : MessageFilter.validate(message.getProperties());
+				if (invalid != null) { // 不加入订阅，关闭连接，消费者的 start 等不到确认
+					System.out.println("拒绝订阅 " + message.getTopic() + "：" + invalid);
+					ctx.close();
+					return;
 				}
-				
-				byteBuffer.clear();
-				byteBuffer.put((string + "\r\n").getBytes(charset));
-				byteBuffer.flip();
-				while (byteBuffer.hasRemaining()) {
-					fileChannel.write(byteBuffer);
+				ByteBuffer body = ByteBuffer.wrap(message.getBody()); // 分配方式 + 窗口 + groupId
+				final MessageModel model = MessageModel.values()[body.get()];
+				int prefetch = Math.max(1, Math.min(body.getInt(), maxPrefetch)); // 窗口按额度分配，不信任客户端的取值
+				String groupId = body.hasRemaining() ? new String(body.array(), body.position(), body.remaining(), charset) : null;
+				final Subscription subscription = getSubscription(message.getTopic(), groupId);
+				final Information information = new Information(ctx.channel(), message, subscription, prefetch);
+				Information previous = consumers.put(ctx.channel(), information);
+				if (previous != null) { // 同一连接重复订阅，替换原来的成员
+					leave(previous);
+				}
+				((FlushConsolidator) ctx.pipeline().get("flush")).setMaxDelay(FlushConsolidator.maxDelay(message.getTopic()));
+
+				subscription.topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (subscription.members.isEmpty()) { // 从已确认位置重新推送
+							subscription.model = model;
+							subscription.nextOffset = subscription.ackOffset();
+							subscription.states.clear(OffsetWindow.INFLIGHT);
+							subscription.counters.clear();
+							subscription.retry.clear();
+						}
+						subscription.members.add(information);
+						subscription.topic.index.add(information, information.filter);
+
+						ctx.writeAndFlush(Frame.ack(0, 0));
+						resume(subscription); // 从存储中追赶积压的消息
+					}
+				});
+			} else if (frame.getOpcode() == Frame.BATCH) { // producer 》 broker，批量生产
+				final Frame stored = frame;
+				final List<Message> messages = frame.getMessages();
+				if (messages.isEmpty()) { // 空批次没有可确认的 msgId，释放原始帧后关闭连接
+					System.out.println("拒绝空的批量消息 " + ctx.channel().remoteAddress());
+					frame.release();
+					ctx.close();
+					return;
 				}
-				fileChannel.force(true);
-				
-				ack.setMsgId(msgId);
-				ctx.writeAndFlush(new Gson().toJson(ack) + "\r\n");
+				final Message first = messages.get(0);
+
+				store.putBatch(frame.getRaw().nioBuffer(), new MessageStore.BatchCallback() {
+					@Override
+					public void onComplete(long[] queueOffsets, boolean success) {
+						SendStatus[] statuses = new SendStatus[messages.size()];
+						Arrays.fill(statuses, success ? SendStatus.SUCCESS : SendStatus.FAIL);
+						ctx.writeAndFlush(Frame.ack(first.getIdHigh(), first.getIdLow(), statuses)); // 整批一次确认
+						if (success == false) {
+							System.out.println("存储失败 #" + first.getMsgId() + "+" + messages.size());
+							stored.release();
+							return;
+						}
+						for (int i = 0; i < queueOffsets.length; i++) {
+							publish(queueOffsets[i], stored.getFrames().get(i));
+						}
+						stored.getRaw().release();
+					}
+				});
+			} else { // producer 》 broker，生产
+				final Frame stored = frame;
+				final long msgIdHigh = message.getIdHigh();
+				final long msgIdLow = message.getIdLow();
+
+//				System.out.println("有新消息 @" + message.getMsgId());
+
+				store.put(message.getTopic(), frame.getRaw().nioBuffer(), new MessageStore.PutCallback() { // 原始帧直接落盘
+					@Override
+					public void onComplete(long queueOffset, boolean success) {
+						if (success) { // 落盘后再确认
+							ctx.writeAndFlush(Frame.ack(msgIdHigh, msgIdLow));
+							publish(queueOffset, stored);
+						} else {
+							ctx.writeAndFlush(Frame.ack(msgIdHigh, msgIdLow, new SendStatus[] { SendStatus.FAIL }));
+							stored.release();
+							System.out.println("存储失败 #" + MessageId.toString(msgIdHigh, msgIdLow));
+						}
+					}
+				});
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			Information information = consumers.remove(ctx.channel());
+			if (information != null) {
+				leave(information);
 			}
 		}
-		
+
+		@Override
+		public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+			final Information information = consumers.get(ctx.channel());
+			if (information != null && ctx.channel().isWritable()) { // 出站缓冲回落到低水位以下，继续推送
+				information.subscription.topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						resume(information.subscription);
+					}
+				});
+			}
+			ctx.fireChannelWritabilityChanged();
+		}
+
 		@Override
 		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
 	        cause.printStackTrace();
 	        ctx.close();
-			try {
-				fileChannel.close();
-				randomAccessFile.close();
-			} catch (Exception e) {
-				e.printStackTrace();
+		}
+	}
+
+	private Subscription getSubscription(String topic, String groupId) {
+		String key = topic + "@" + groupId;
+		Subscription subscription = subscriptions.get(key);
+		if (subscription != null) {
+			return subscription;
+		}
+
+		long offset = store.getConsumerOffset(topic, groupId);
+		subscription = new Subscription(getTopic(topic), groupId, offset < 0 ? store.getMinOffset(topic) : offset);
+		long[] acked = store.getConsumerAcked(topic, groupId);
+		for (int i = 0; i < acked.length; i += 2) { // 重启前已确认的消息不再推送
+			for (long ackedOffset = acked[i]; ackedOffset < acked[i + 1]; ackedOffset++) {
+				subscription.states.set(ackedOffset, OffsetWindow.ACKED);
+			}
+		}
+		Subscription exists = subscriptions.putIfAbsent(key, subscription);
+		return exists == null ? subscription : exists;
+	}
+
+	private Topic getTopic(String name) {
+		Topic topic = topics.get(name);
+		if (topic == null) {
+			topic = new Topic(name, dispatchers[(name.hashCode() & 0x7FFFFFFF) % dispatchers.length]);
+			Topic exists = topics.putIfAbsent(name, topic);
+			if (exists != null) {
+				topic = exists;
+			}
+		}
+		return topic;
+	}
+
+	/**
+	 * 成员离开订阅：连接断开，或同一连接重新订阅。交给 topic 的推送线程，未确认的推送收回给其余成员
+	 */
+	private void leave(final Information information) {
+		final Subscription subscription = information.subscription;
+		subscription.topic.dispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				subscription.topic.index.remove(information);
+
+				subscription.members.remove(information);
+				if (subscription.members.isEmpty()) { // 下一个订阅者从 ackOffset() 重新推送
+					for (long sequence = information.ackSequence; sequence < information.sequence; sequence++) {
+						information.remove(sequence);
+					}
+					if (subscription.live) {
+						subscription.nextOffset = Math.max(subscription.nextOffset, subscription.topic.dispatchedOffset);
+						subscription.live = false;
+					}
+					return;
+				}
+
+				while (information.retry.isEmpty() == false) { // 未确认的消息从存储中读出，推送给其余成员
+					release(subscription, information.retry.poll());
+				}
+				for (long sequence = information.ackSequence; sequence < information.sequence; sequence++) {
+					long queueOffset = information.remove(sequence);
+					if (queueOffset >= 0) {
+						release(subscription, queueOffset);
+					}
+				}
+				resume(subscription);
 			}
+		});
+	}
+
+	/**
+	 * 收回成员未确认的一条推送（成员离开，或重投时消息已不在存储中）：没有其他成员推送过时交给订阅重新推送，
+	 * 读不到消息时按不匹配确认跳过；其余成员均已确认时推进确认位置
+	 */
+	private void release(Subscription subscription, long queueOffset) {
+		Counters counters = subscription.counters;
+		int slot = counters.get(queueOffset);
+		if (slot < 0) {
+			return;
+		}
+		counters.y[slot]--;
+		if (counters.y[slot] == 0) {
+			subscription.retry.add(queueOffset);
+		} else if (counters.check(slot)) {
+			subscription.ack(queueOffset);
 		}
 	}
-	
+
+	/**
+	 * 处理消费者的批量确认：sequence 之前的推送和 acked 中置位的推送均已确认。在 topic 的推送线程上执行
+	 */
+	private void ack(Information information, long sequence, BitSet acked) {
+		Subscription subscription = information.subscription;
+		long end = Math.min(sequence, information.sequence);
+		for (long i = information.ackSequence; i < end; i++) {
+			ack(information, i);
+		}
+		for (int i = acked.nextSetBit(0); i >= 0 && sequence + i < information.sequence; i = acked.nextSetBit(i + 1)) {
+			ack(information, sequence + i);
+		}
+		information.advance();
+
+		if (subscription.live == false || subscription.retry.isEmpty() == false || information.retry.isEmpty() == false) { // 归还额度，继续推送积压的消息
+			resume(subscription);
+		}
+	}
+
+	/**
+	 * 所有推送过的成员都确认后推进订阅的确认位置
+	 */
+	private void ack(Information information, long sequence) {
+		if (sequence < information.ackSequence) { // 已超时或已拒绝，槽位可能已被之后的推送占用
+			return;
+		}
+		long queueOffset = information.remove(sequence);
+		if (queueOffset < 0) { // 重置之前的推送
+			return;
+		}
+		Counters counters = information.subscription.counters;
+		int slot = counters.get(queueOffset);
+		counters.x[slot]++;
+		if (counters.check(slot)) {
+			String msgId = MessageId.toString(counters.msgIdHigh[slot], counters.msgIdLow[slot]);
+			information.subscription.ack(queueOffset);
+			System.out.println("消息队列 %" + counters.size());
+			System.out.println("推送成功 #" + msgId);
+		}
+	}
+
+	/**
+	 * 各订阅在所属推送线程上提交当前确认位置，checkpoint 写入的是上一次提交的结果
+	 */
+	private void commitOffsets() {
+		for (final Topic topic : topics.values()) {
+			if (topic.dispatcher.isShutdown()) { // 停止时已在关闭推送线程之前提交
+				continue;
+			}
+			topic.dispatcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (Subscription subscription : subscriptions.values()) {
+						if (subscription.topic == topic) {
+							store.commitConsumerOffset(topic.name, subscription.groupId, subscription.ackOffset(),
+									subscription.states.acked());
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * 交给 topic 的推送线程，按存储顺序实时推送并唤醒挂起的拉取，推送完释放原始帧
+	 */
+	private void publish(final long queueOffset, final Frame frame) {
+		final Topic topic = topics.get(frame.getMessage().getTopic());
+		if (topic == null) { // 没有订阅，消息留在存储中
+			frame.release();
+			return;
+		}
+		topic.dispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					dispatch(topic, queueOffset, frame);
+					if (topic.pulls.isEmpty() == false) {
+						wake(topic);
+					}
+				} finally {
+					frame.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * 按过滤索引实时推送刚写入的消息，只经过匹配的订阅，开销与过滤器总数无关。在 topic 的推送线程上执行
+	 */
+	private void dispatch(Topic topic, long queueOffset, Frame frame) {
+		List<Information> matched = topic.matched;
+		topic.index.match(frame.getMessage().getProperties(), matched);
+
+		for (Information member : matched) {
+			Subscription subscription = member.subscription;
+			if (subscription.lastMatched == queueOffset) { // 同一订阅的其他成员已处理
+				continue;
+			}
+			subscription.lastMatched = queueOffset;
+
+			if (subscription.live == false || queueOffset < subscription.nextOffset) { // 仍在追赶，或已在追赶中推送
+				continue;
+			}
+			if (subscription.deliver(queueOffset, frame) == BLOCKED) { // 额度用尽，之后从存储中读取
+				subscription.live = false;
+				subscription.nextOffset = queueOffset;
+			} else {
+				subscription.nextOffset = queueOffset + 1;
+			}
+		}
+		matched.clear();
+		topic.dispatchedOffset = Math.max(topic.dispatchedOffset, queueOffset + 1);
+	}
+
+	/**
+	 * 有新消息时立即回复，否则挂起到有新消息写入或 maxWait 到期。在 topic 的推送线程上执行
+	 */
+	private void pull(final Topic topic, final PullRequest request) {
+		if (request.maxWait <= 0 || request.offset < store.getMaxOffset(topic.name)) {
+			respond(topic, request);
+			return;
+		}
+		request.timeout = timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				topic.dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (topic.pulls.remove(request)) { // 期间没有新消息
+							respond(topic, request);
+						}
+					}
+				});
+			}
+		}, request.maxWait, TimeUnit.MILLISECONDS);
+		topic.pulls.add(request);
+	}
+
+	/**
+	 * 回复挂起的拉取中已有新消息的。在 topic 的推送线程上执行
+	 */
+	private void wake(Topic topic) {
+		long maxOffset = store.getMaxOffset(topic.name);
+		for (Iterator<PullRequest> iterator = topic.pulls.iterator(); iterator.hasNext();) {
+			PullRequest request = iterator.next();
+			if (request.offset < maxOffset || request.channel.isActive() == false) {
+				iterator.remove();
+				request.timeout.cancel();
+				respond(topic, request);
+			}
+		}
+	}
+
+	/**
+	 * 从消费队列顺序读出最多 maxMessages 条、不超过 pullMaxBytes 字节（至少一条）的消息，
+	 * 响应直接引用映射区中的原始帧，不经过堆。offset 超出存储范围时从最近的一端开始
+	 */
+	private void respond(Topic topic, PullRequest request) {
+		if (request.channel.isActive() == false) {
+			return;
+		}
+		long maxOffset = store.getMaxOffset(topic.name);
+		long offset = Math.min(Math.max(request.offset, store.getMinOffset(topic.name)), maxOffset);
+		List<ByteBuffer> messages = new ArrayList<ByteBuffer>(Math.min(Math.max(request.maxMessages, 0), 1024));
+		int bytes = 0;
+		while (offset < maxOffset && messages.size() < request.maxMessages) {
+			ByteBuffer data = store.read(topic.name, offset);
+			if (data == null) {
+				break;
+			}
+			if (bytes + data.remaining() > pullMaxBytes && messages.isEmpty() == false) {
+				break;
+			}
+			messages.add(data);
+			bytes += data.remaining();
+			offset++;
+		}
+		request.channel.writeAndFlush(Frame.messages(request.sequence, offset, maxOffset, messages));
+	}
+
+	/**
+	 * 消费者本地重试后仍失败，按确认超时处理，不再等待确认期限。在 topic 的推送线程上执行
+	 */
+	private void reject(Information information, long sequence) {
+		if (sequence < information.ackSequence || sequence >= information.sequence || information.get(sequence) < 0) {
+			return;
+		}
+		redeliver(information, sequence, "消费失败");
+	}
+
+	/**
+	 * 收回该推送：集群消费时优先重投给组内其他成员，广播消费时重投给该成员，确认期限按次数翻倍
+	 */
+	private void redeliver(Information information, long sequence, String reason) {
+		Subscription subscription = information.subscription;
+		long queueOffset = information.remove(sequence);
+		information.advance();
+		if (queueOffset < 0) { // 重置之前的推送，只归还额度
+			resume(subscription);
+			return;
+		}
+		Counters counters = subscription.counters;
+		int slot = counters.get(queueOffset);
+		counters.attempts[slot]++;
+		System.out.println(reason + " #" + MessageId.toString(counters.msgIdHigh[slot], counters.msgIdLow[slot]) + " x"
+				+ counters.attempts[slot]);
+
+		if (subscription.model == MessageModel.BROADCASTING) {
+			information.retry.add(queueOffset); // 推送数不变，重投时不再增加
+		} else {
+			counters.excluded[slot] = information;
+			counters.y[slot]--;
+			subscription.retry.add(queueOffset);
+		}
+		resume(subscription);
+	}
+
+	/**
+	 * 把订阅的消费位置重置到 offset，之前和之后的消息都从这里重新推送，已确认的记录一并清除。
+	 * 已推送未确认的消息不收回，之后的确认和重投按 generation 忽略。在 topic 的推送线程上执行
+	 */
+	private void seek(Subscription subscription, long offset) {
+		subscription.generation++;
+		subscription.nextOffset = offset;
+		subscription.live = false;
+		subscription.states.reset(offset);
+		subscription.counters.clear();
+		subscription.retry.clear();
+		for (Information member : subscription.members) {
+			member.retry.clear();
+		}
+		System.out.println("重置消费位置 " + subscription.topic.name + "@" + subscription.groupId + " %" + offset);
+		resume(subscription);
+	}
+
+	/**
+	 * 先重新推送超时和离开成员未确认的消息，再从存储中追赶，额度用尽时停下。在 topic 的推送线程上执行
+	 */
+	private void resume(Subscription subscription) {
+		for (Information member : subscription.members) {
+			while (member.retry.isEmpty() == false && member.hasCredit()) {
+				long queueOffset = member.retry.poll();
+				int slot = subscription.counters.get(queueOffset);
+				if (slot < 0) {
+					continue;
+				}
+				Frame frame = store.getMessage(subscription.topic.name, queueOffset);
+				if (frame != null) {
+					subscription.push(member, frame, queueOffset, slot);
+					subscription.counters.y[slot]--;
+				} else { // 存储中已没有该消息，不再等待该成员确认
+					release(subscription, queueOffset);
+				}
+			}
+		}
+		while (subscription.retry.isEmpty() == false && subscription.members.isEmpty() == false) {
+			long queueOffset = subscription.retry.peek();
+			int slot = subscription.counters.get(queueOffset);
+			if (slot < 0) {
+				subscription.retry.poll();
+				continue;
+			}
+			Frame frame = store.getMessage(subscription.topic.name, queueOffset);
+			int result = frame == null ? UNMATCHED : subscription.push(frame, queueOffset, slot);
+			if (result == BLOCKED) {
+				return;
+			}
+			subscription.retry.poll();
+			if (result == UNMATCHED) { // 其余成员都不匹配
+				subscription.ack(queueOffset);
+			}
+		}
+		catchUp(subscription);
+	}
+
+	/**
+	 * 按消费队列顺序从映射文件中读出订阅尚未推送的消息，追上之后交给过滤索引实时推送
+	 */
+	private void catchUp(Subscription subscription) {
+		if (subscription.live) {
+			return;
+		}
+		long maxOffset = store.getMaxOffset(subscription.topic.name);
+		while (subscription.nextOffset < maxOffset && subscription.members.isEmpty() == false) {
+			long offset = subscription.nextOffset;
+			if (subscription.states.get(offset) != OffsetWindow.ACKED) {
+				Frame message = store.getMessage(subscription.topic.name, offset);
+				if (message != null && subscription.deliver(offset, message) == BLOCKED) { // 额度用尽，等待确认
+					return;
+				}
+			}
+			subscription.nextOffset++;
+		}
+		if (subscription.members.isEmpty() == false) {
+			subscription.live = true;
+		}
+	}
+
 	public static void main(String[] args) {
 		try {
 			new DefaultBroker().start();
@@ -1,9 +1,13 @@
 package com.alibaba.middleware.race.mom;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Arrays;
-
-import com.google.gson.Gson;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.ChannelHandlerContext;
@@ -12,13 +16,7 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutorGroup;
 
@@ -28,26 +26,45 @@ public class DefaultConsumer implements Consumer {
 	private String filter;
 	private MessageListener listener;
 	private String groupId;
+	private MessageModel messageModel = MessageModel.CLUSTERING;
+	private int prefetch = Integer.getInteger("mom.prefetch", 1000); // broker 最多推送这么多条未确认的消息
 
 	private static Charset charset = Charset.forName("UTF-8");
 	private EventLoopGroup workerGroup;
 	private ChannelHandlerContext context;
+	private CountDownLatch subscribed = new CountDownLatch(1);
+	private CountDownLatch seeking; // 等待 broker 回复定位结果
+	private volatile long seekOffset;
+
+	// 批量确认，只在连接的 I/O 线程上读写
+	private long ackSequence = 0; // 之前的推送均已确认
+	private BitSet acked = new BitSet(); // 第 i 位表示 ackSequence + i 已确认
+	private int unsent = 0;
+	private int ackBatch = Integer.getInteger("mom.ackBatch", 32);
+	private long ackInterval = Long.getLong("mom.ackInterval", 10);
+
+	private ExecutorService[] lanes; // 消费线程，同一顺序键的消息进入同一线程
+	private String orderKey = System.getProperty("mom.orderKey"); // 按该属性的值保序，为 null 时不保序
+	private AtomicInteger next = new AtomicInteger(); // 没有顺序键时轮流分配
+	private AtomicInteger queued = new AtomicInteger(); // 已收到、监听器尚未处理完的消息数
+	private int maxQueued = Integer.getInteger("mom.consumeQueue", prefetch);
+	private int consumeRetries = Integer.getInteger("mom.consumeRetries", 3); // 本地重试次数，之后交还 broker 重投
+	private long retryDelay = Long.getLong("mom.retryDelay", 100); // 第一次重试前等待的毫秒数，之后逐次翻倍
 
 	public DefaultConsumer() {
 		brokerIp = System.getProperty("SIP", "localhost");
-		workerGroup = new NioEventLoopGroup();
+		workerGroup = Transport.newGroup(0);
 		
 		try {
 			Bootstrap b = new Bootstrap();
-			b.group(workerGroup).channel(NioSocketChannel.class)//.option(ChannelOption.TCP_NODELAY, true)
+			b.group(workerGroup).channel(Transport.channel()).option(ChannelOption.TCP_NODELAY, Transport.TCP_NODELAY)
 					.handler(new ChannelInitializer<SocketChannel>() {
 						@Override
 						public void initChannel(SocketChannel ch) throws Exception {
 							ChannelPipeline pipeline = ch.pipeline();
-							pipeline.addLast("framer",
-									new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
-							pipeline.addLast("decoder", new StringDecoder());
-							pipeline.addLast("encoder", new StringEncoder());
+							pipeline.addLast("flush", new FlushConsolidator());
+							pipeline.addLast("decoder", new FrameDecoder());
+							pipeline.addLast("encoder", new FrameEncoder());
 							pipeline.addLast("handler", new DefaultConsumerHandler());
 						}
 					});
@@ -60,41 +77,200 @@ public class DefaultConsumer implements Consumer {
 
 	@Override
 	public void start() {
+		lanes = new ExecutorService[Math.max(Integer.getInteger("mom.consumeThreads", Runtime.getRuntime()
+				.availableProcessors()), 1)];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = Executors.newSingleThreadExecutor();
+		}
+
 		Message message = new Message();
-		message.setBody("SUB".getBytes(charset));
 		message.setTopic(topic);
-		if (filter.equals("") == false) {
-			message.setProperty(filter.split("=")[0], filter.split("=")[1]);
+		byte[] group = groupId == null ? new byte[0] : groupId.getBytes(charset); // broker 以 (topic, groupId) 记录消费进度
+		ByteBuffer body = ByteBuffer.allocate(1 + 4 + group.length);
+		body.put((byte) messageModel.ordinal()).putInt(prefetch).put(group);
+		message.setBody(body.array());
+		if (filter != null && filter.equals("") == false) {
+			for (String condition : filter.split("&")) { // 多个条件，例如 area=hz&type=1
+				int index = condition.indexOf('=');
+				if (index > 0) {
+					message.setProperty(condition.substring(0, index).trim(), condition.substring(index + 1).trim());
+				}
+			}
 		}
 
-		context.writeAndFlush(new Gson().toJson(message) + "\r\n"); // consumer 》 broker，订阅消息
-	}
+		((FlushConsolidator) context.pipeline().get("flush")).setMaxDelay(FlushConsolidator.maxDelay(topic));
+		context.writeAndFlush(new Frame(Frame.SUB, message)); // consumer 》 broker，订阅消息
 
-	public class DefaultConsumerHandler extends SimpleChannelInboundHandler<String> {
-		private Message ack = new Message();
-
-		{
-			ack.setBody("ACK".getBytes(charset));
+		try {
+			subscribed.await(3, TimeUnit.SECONDS); // 等待 broker 确认订阅，避免订阅生效前的消息丢失
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+	}
 
+	public class DefaultConsumerHandler extends SimpleChannelInboundHandler<Frame> {
 		@Override
 		public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
 			context = ctx;
 		}
 
 		@Override
-		public void channelRead0(ChannelHandlerContext ctx, String string) throws Exception {
-			Message message = new Gson().fromJson(string, Message.class);
+		public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+			ctx.executor().scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					flush(ctx);
+				}
+			}, ackInterval, ackInterval, TimeUnit.MILLISECONDS);
+			ctx.fireChannelActive();
+		}
+
+		@Override
+		public void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+			Message message = frame.getMessage();
 
-			if (Arrays.equals(message.getBody(), "ACK".getBytes(charset))) {
+			if (frame.getOpcode() == Frame.ACK) {
 //				System.out.println("订阅成功");
+				subscribed.countDown();
+			} else if (frame.getOpcode() == Frame.SEEK) {
+				seekOffset = ByteBuffer.wrap(message.getBody()).getLong();
+				seeking.countDown();
+			} else {
+				consume(ctx, message, frame.getSequence());
+			}
+		}
+
+		/**
+		 * 交给消费线程执行监听器，不占用 I/O 线程。顺序键相同的消息在同一线程中依次处理，不同的键并行；
+		 * 待处理的消息达到 maxQueued 时暂停读取，处理到一半以下再恢复
+		 */
+		private void consume(ChannelHandlerContext ctx, Message message, long sequence) {
+			String key = orderKey == null ? null : message.getProperty(orderKey);
+			int lane = ((key == null ? next.getAndIncrement() : key.hashCode()) & 0x7FFFFFFF) % lanes.length;
+
+			if (queued.incrementAndGet() >= maxQueued) {
+				ctx.channel().config().setAutoRead(false);
+				if (queued.get() <= maxQueued / 2) { // 暂停之前已经处理完
+					ctx.channel().config().setAutoRead(true);
+				}
+			}
+			lanes[lane].execute(new Delivery(ctx, message, sequence, lane));
+		}
+
+		/**
+		 * 一次推送的消费。监听器返回 SUCCESS 后才确认，确认仍在 I/O 线程上攒批发送；
+		 * 失败或抛出异常时等待 retryDelay * 2^n 后重试，保序时在原线程等待，否则让出线程稍后重新排队。
+		 * 重试 consumeRetries 次仍失败则回复 NACK，由 broker 重投
+		 */
+		private class Delivery implements Runnable {
+			private final ChannelHandlerContext ctx;
+			private final Message message;
+			private final long sequence;
+			private final int lane;
+			private int attempts = 0;
+
+			public Delivery(ChannelHandlerContext ctx, Message message, long sequence, int lane) {
+				this.ctx = ctx;
+				this.message = message;
+				this.sequence = sequence;
+				this.lane = lane;
+			}
+
+			@Override
+			public void run() {
+				while (consume() == false) {
+					if (++attempts > consumeRetries) {
+						settle(false);
+						return;
+					}
+					long delay = retryDelay << Math.min(attempts - 1, 16);
+					if (orderKey == null) {
+						ctx.executor().schedule(new Runnable() {
+							@Override
+							public void run() {
+								lanes[lane].execute(Delivery.this);
+							}
+						}, delay, TimeUnit.MILLISECONDS);
+						return;
+					}
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						settle(false);
+						return;
+					}
+				}
+				settle(true);
+			}
+
+			private boolean consume() {
+				try {
+					ConsumeResult result = listener.onMessage(message);
+					if (result != null && result.getStatus() == ConsumeStatus.SUCCESS) {
+						System.out.println("消费成功 #" + message.getMsgId());
+						return true;
+					}
+					System.out.println("消费失败 #" + message.getMsgId() + " x" + (attempts + 1));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				return false;
+			}
+
+			private void settle(final boolean success) {
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						if (success) {
+							ack(ctx, sequence);
+						} else {
+							nack(ctx, sequence);
+						}
+					}
+				});
+				if (queued.decrementAndGet() <= maxQueued / 2 && ctx.channel().config().isAutoRead() == false) {
+					ctx.channel().config().setAutoRead(true);
+				}
+			}
+		}
+
+		/**
+		 * 交还 broker 重投（集群消费时优先投给组内其他成员）。broker 已收回该推送，本地按已处理推进累计确认序号
+		 */
+		private void nack(ChannelHandlerContext ctx, long sequence) {
+			ctx.writeAndFlush(Frame.nack(sequence));
+			ack(ctx, sequence);
+		}
+
+		/**
+		 * 记录确认，攒够 ackBatch 条或每隔 ackInterval 毫秒发送一次累计序号 + 位图
+		 */
+		private void ack(ChannelHandlerContext ctx, long sequence) {
+			if (sequence < ackSequence) {
+				return;
+			}
+			if (sequence == ackSequence && acked.isEmpty()) { // 按序确认
+				ackSequence++;
 			} else {
-				ack.setMsgId(message.getMsgId());
-				ctx.writeAndFlush(new Gson().toJson(ack) + "\r\n");
+				acked.set((int) (sequence - ackSequence));
+				int count = acked.nextClearBit(0);
+				if (count > 0) {
+					ackSequence += count;
+					acked = acked.get(count, Math.max(count, acked.length()));
+				}
+			}
+			if (++unsent >= ackBatch) {
+				flush(ctx);
+			}
+		}
 
-				System.out.println("消费成功 #" + message.getMsgId());
-				listener.onMessage(message);
+		private void flush(ChannelHandlerContext ctx) {
+			if (unsent == 0) {
+				return;
 			}
+			unsent = 0;
+			ctx.writeAndFlush(Frame.ack(ackSequence, acked));
 		}
 		
 		@Override
@@ -116,11 +292,61 @@ public class DefaultConsumer implements Consumer {
 		this.groupId = groupId;
 	}
 
+	/**
+	 * 设置组内的消息分配方式，默认为集群消费。要在 start 之前调用，组内第一个订阅者的设置生效
+	 */
+	public void setMessageModel(MessageModel messageModel) {
+		this.messageModel = messageModel;
+	}
+
+	/**
+	 * 按消息的该属性保序：值相同的消息依次交给监听器，不同的值并行处理。集群消费时只保证本消费者收到的消息的顺序
+	 */
+	public void setOrderKey(String orderKey) {
+		this.orderKey = orderKey;
+	}
+
+	/**
+	 * 把订阅的消费位置重置到 topic 的逻辑偏移 offset，之后从这里重新推送，之前已确认的消息也会再次收到。
+	 * 同组的所有成员一起重置，要在 start 之后调用
+	 *
+	 * @return 实际的位置，超出存储范围时取最近的一端，broker 未回复时返回 -1
+	 */
+	public long seek(long offset) {
+		return seek((byte) 0, offset);
+	}
+
+	/**
+	 * 把订阅的消费位置重置到 bornTime 不早于 timestamp 的第一条消息，例如重新处理最近一小时的消息。
+	 * 由 broker 的稀疏时间索引定位，不扫描整个 topic
+	 *
+	 * @return 定位到的逻辑偏移，broker 未回复时返回 -1
+	 */
+	public long seekByTime(long timestamp) {
+		return seek((byte) 1, timestamp);
+	}
+
+	private synchronized long seek(byte by, long value) {
+		seeking = new CountDownLatch(1);
+		context.writeAndFlush(Frame.seek(0, topic, by, value));
+		try {
+			if (seeking.await(3, TimeUnit.SECONDS)) {
+				return seekOffset;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return -1;
+	}
+
 	@Override
 	public void stop() {
 		try {
 			context.channel().close();
 			workerGroup.shutdownGracefully();
+			for (ExecutorService lane : lanes) {
+				lane.shutdown();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -1,16 +1,17 @@
 package com.alibaba.middleware.race.mom;
 
-import java.nio.charset.Charset;
-import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-
-import com.google.gson.Gson;
+import java.util.concurrent.locks.LockSupport;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
@@ -19,48 +20,110 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
 public class DefaultProducer implements Producer {
 	private String brokerIp;
 	private String topic;
 	private String groupId;
+	private byte codec = Codec.NONE; // 按 topic 配置的 body 压缩
+	private int compressThreshold;
 
-	private static Charset charset = Charset.forName("UTF-8");
-	private static AtomicLong messageCount = new AtomicLong();
 	private EventLoopGroup workerGroup;
-	private ChannelHandlerContext context;
-	private ConcurrentHashMap<String, BlockingQueue<MessageStatus>> messages = new ConcurrentHashMap<String, BlockingQueue<MessageStatus>>();
+	private Connection[] connections;
+	private AtomicInteger next = new AtomicInteger(); // 轮询位置
+	private boolean leastOutstanding = "least".equals(System.getProperty("mom.connectionSelect")); // 默认轮询
+	private Slot[] slots; // 等待 ack 的同步发送
+	private ConcurrentHashMap<Long, InFlight> inflight = new ConcurrentHashMap<Long, InFlight>(); // 等待 ack 的异步发送，按首条消息 msgId 的序号
+
+	private Semaphore window = new Semaphore(Integer.getInteger("mom.maxInflight", 10000)); // 未确认的异步发送数上限
+	private boolean rejectWhenFull = Boolean.getBoolean("mom.rejectWhenFull"); // 窗口满时直接失败，默认阻塞等待
+	private long sendTimeout = Long.getLong("mom.sendTimeout", 3000); // 毫秒
+	private HashedWheelTimer timer = new HashedWheelTimer();
+
+	private static class Connection {
+		private Channel channel;
+		private final AtomicInteger outstanding = new AtomicInteger(); // 在该连接上等待 ack 的请求数
+	}
+
+	/**
+	 * 已发出、等待 ack 的请求，记录所在连接，连接断开时改到其他连接重发
+	 */
+	private abstract class Pending {
+		protected Frame frame; // 完成后置 null
+		protected volatile Connection connection;
+
+		abstract void fail(String info);
+	}
 
-	private enum MessageStatus {
-		SUCCESS, FAIL
+	/**
+	 * 同步发送的等待槽，预先分配，按 msgId 的序号取模定位，不为每次发送创建对象。
+	 * state 为 0 表示空闲，为 id 表示发送线程等待中，为 -id 表示 ack 已到、连接已断开或等待超时，正在清理
+	 */
+	private class Slot extends Pending {
+		private final AtomicLong state = new AtomicLong();
+		private volatile Thread waiter;
+		private volatile boolean done;
+		private Frame ack; // done 之前写入，null 表示失败
+
+		@Override
+		void fail(String info) {
+			long id = state.get();
+			if (id > 0) {
+				wake(id, null);
+			}
+		}
+	}
+
+	private class InFlight extends Pending {
+		private List<Message> messages;
+		private SendCallback callback;
+		private Timeout timeout;
+
+		public InFlight(List<Message> messages, Frame frame, SendCallback callback, Timeout timeout) {
+			this.messages = messages;
+			this.frame = frame;
+			this.callback = callback;
+			this.timeout = timeout;
+		}
+
+		@Override
+		void fail(String info) {
+			complete(messages.get(0).getIdLow(), null, info);
+		}
 	}
 
 	public DefaultProducer() {
 		brokerIp = System.getProperty("SIP", "localhost");
-		workerGroup = new NioEventLoopGroup();
+		int size = Integer.highestOneBit(Math.max(Integer.getInteger("mom.syncSlots", 1024), 2) - 1) << 1;
+		slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		connections = new Connection[Math.max(Integer.getInteger("mom.connections", 1), 1)];
+		workerGroup = Transport.newGroup(0);
 		try {
-			Bootstrap b = new Bootstrap();
-			b.group(workerGroup).channel(NioSocketChannel.class)//.option(ChannelOption.TCP_NODELAY, true)
-					.handler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						public void initChannel(SocketChannel ch) throws Exception {
-							ChannelPipeline pipeline = ch.pipeline();
-							pipeline.addLast("framer",
-									new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
-							pipeline.addLast("decoder", new StringDecoder());
-							pipeline.addLast("encoder", new StringEncoder());
-							pipeline.addLast("handler", new DefaultProducerHandler());
-						}
-					});
-
-			b.connect(brokerIp, 9999).sync();
+			for (int i = 0; i < connections.length; i++) {
+				final Connection connection = new Connection();
+				Bootstrap b = new Bootstrap();
+				b.group(workerGroup).channel(Transport.channel()).option(ChannelOption.TCP_NODELAY, Transport.TCP_NODELAY)
+						.handler(new ChannelInitializer<SocketChannel>() {
+							@Override
+							public void initChannel(SocketChannel ch) throws Exception {
+								ChannelPipeline pipeline = ch.pipeline();
+								pipeline.addLast("flush", new FlushConsolidator());
+								pipeline.addLast("decoder", new FrameDecoder());
+								pipeline.addLast("encoder", new FrameEncoder());
+								pipeline.addLast("handler", new DefaultProducerHandler(connection));
+							}
+						});
+
+				connection.channel = b.connect(brokerIp, 9999).sync().channel();
+				connections[i] = connection;
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -71,21 +134,38 @@ public class DefaultProducer implements Producer {
 
 	}
 
-	public class DefaultProducerHandler extends SimpleChannelInboundHandler<String> {
+	public class DefaultProducerHandler extends SimpleChannelInboundHandler<Frame> {
+		private final Connection connection;
 
-		@Override
-		public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
-			context = ctx;
+		DefaultProducerHandler(Connection connection) {
+			this.connection = connection;
 		}
 
 		@Override
-		public void channelRead0(ChannelHandlerContext ctx, String string) throws Exception {
-			Message message = new Gson().fromJson(string, Message.class);
+		public void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+			Message message = frame.getMessage();
 
-			if (Arrays.equals(message.getBody(), "ACK".getBytes(charset))) {
+			if (frame.getOpcode() == Frame.ACK) {
 //				System.out.println("生产成功 @" + messageCount.get());
-				messages.get(message.getMsgId()).add(MessageStatus.SUCCESS);
+				if (wake(message.getIdLow(), frame) == false) { // 序号在本进程内唯一，ack 只会回到发出的进程
+					complete(message.getIdLow(), frame, null);
+				}
+			}
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			for (InFlight request : inflight.values()) { // 该连接上不会再有 ack
+				if (request.connection == connection) {
+					resend(request, connection);
+				}
+			}
+			for (Slot slot : slots) {
+				if (slot.state.get() > 0 && slot.connection == connection) {
+					resend(slot, connection);
+				}
 			}
+			ctx.fireChannelInactive();
 		}
 
 		@Override
@@ -98,6 +178,11 @@ public class DefaultProducer implements Producer {
 	@Override
 	public void setTopic(String topic) {
 		this.topic = topic;
+		this.codec = Codec.forTopic(topic);
+		this.compressThreshold = Codec.threshold(topic);
+		for (Connection connection : connections) {
+			((FlushConsolidator) connection.channel.pipeline().get("flush")).setMaxDelay(FlushConsolidator.maxDelay(topic));
+		}
 	}
 
 	@Override
@@ -107,80 +192,305 @@ public class DefaultProducer implements Producer {
 
 	@Override
 	public SendResult sendMessage(Message message) {
-		String msgId = Long.toString(messageCount.incrementAndGet());
-		SendResult sendResult = new SendResult();
-		
+		List<Message> messages = Collections.singletonList(message);
 		message.setTopic(topic);
-		message.setMsgId(msgId);
 		message.setBornTime(System.currentTimeMillis());
+		compress(message);
+		long id = acquire(); // 压缩之后再占用等待槽，压缩失败时不会泄漏
+		message.setId(MessageId.NODE, id);
 
-		messages.putIfAbsent(msgId, new LinkedBlockingQueue<MessageStatus>(1));
-		context.writeAndFlush(new Gson().toJson(message) + "\r\n");
+		send(slot(id), new Frame(Frame.MESSAGE, message));
+		return results(messages, await(id), "no ack within " + sendTimeout + "ms").get(0);
+	}
 
-		try {
-//			System.out.println("当前阻塞 %" + messages.size());
-			MessageStatus status = messages.get(msgId).take();
+	@Override
+	public void asyncSendMessage(Message message, SendCallback callback) {
+		List<Message> messages = new ArrayList<Message>(1);
+		messages.add(message);
+		prepare(messages);
+		asyncSend(messages, new Frame(Frame.MESSAGE, message), callback);
+	}
+
+	@Override
+	public List<SendResult> sendMessages(List<Message> messages) {
+		if (messages.isEmpty()) {
+			return new ArrayList<SendResult>();
+		}
+		prepare(messages);
+		long id = acquire(); // ack 按首条消息的 msgId 返回
+		messages.get(0).setId(MessageId.NODE, id);
+
+		send(slot(id), new Frame(messages));
+		return results(messages, await(id), "no ack within " + sendTimeout + "ms");
+	}
 
-			if (status == MessageStatus.SUCCESS) {
-				sendResult.setStatus(SendStatus.SUCCESS);
-				sendResult.setMsgId(msgId);
-				return sendResult;
+	/**
+	 * 占用一个空闲的等待槽，其 id 同时作为消息 msgId 的序号。槽被占用时跳过该 id 重新分配
+	 */
+	private long acquire() {
+		for (;;) {
+			long id = MessageId.next();
+			Slot slot = slot(id);
+			if (slot.state.get() == 0 && slot.state.compareAndSet(0, id)) {
+				slot.waiter = Thread.currentThread();
+				return id;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * 等待 ack，最多 sendTimeout 毫秒，超时返回 null 并释放槽
+	 */
+	private Frame await(long id) {
+		Slot slot = slot(id);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sendTimeout);
+		while (slot.done == false) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining > 0) {
+				LockSupport.parkNanos(this, remaining);
+			} else if (slot.state.compareAndSet(id, -id)) { // 先认领，清理完才放回，期间不会被其他发送占用
+				slot.waiter = null;
+				release(slot);
+				slot.state.set(0);
+				return null;
 			} else {
-				sendResult.setStatus(SendStatus.FAIL);
-				sendResult.setMsgId(msgId);
-				return sendResult;
+				Thread.yield(); // ack 已认领，稍后 done
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			messages.remove(msgId);
 		}
-		sendResult.setStatus(SendStatus.FAIL);
-		sendResult.setMsgId(msgId);
-		return sendResult;
+		Frame ack = slot.ack;
+		slot.ack = null;
+		slot.done = false;
+		slot.waiter = null;
+		release(slot);
+		slot.state.set(0);
+		return ack;
+	}
+
+	/**
+	 * 唤醒等待 id 的同步发送，该 id 不是等待中的同步发送时返回 false
+	 */
+	private boolean wake(long id, Frame ack) {
+		Slot slot = slot(id);
+		if (slot.state.compareAndSet(id, -id) == false) {
+			return false;
+		}
+		Thread waiter = slot.waiter;
+		slot.ack = ack;
+		slot.done = true;
+		LockSupport.unpark(waiter);
+		return true;
+	}
+
+	private Slot slot(long id) {
+		return slots[(int) id & (slots.length - 1)];
+	}
+
+	/**
+	 * 在选出的连接上发出请求，没有可用连接时直接失败。写失败且连接已断开时改到其他连接重发
+	 */
+	private void send(Pending request, Frame frame) {
+		synchronized (request) {
+			request.frame = frame;
+		}
+		send(request);
+	}
+
+	private void send(final Pending request) {
+		final Connection connection = select();
+		if (connection == null) {
+			request.fail("connection closed");
+			return;
+		}
+		Frame frame;
+		synchronized (request) {
+			frame = request.frame;
+			if (frame == null) { // 重发前已经完成
+				return;
+			}
+			request.connection = connection;
+		}
+		connection.outstanding.incrementAndGet();
+
+		connection.channel.writeAndFlush(frame).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (future.isSuccess()) {
+					return;
+				}
+				if (connection.channel.isActive()) { // 不是连接的问题，重发也不会成功
+					future.cause().printStackTrace();
+					request.fail("write failed");
+				} else {
+					resend(request, connection);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 仍在 from 上等待 ack 的请求改到其他连接重发。断开前 broker 可能已经存下，重发后可能重复
+	 */
+	private void resend(Pending request, Connection from) {
+		synchronized (request) {
+			if (request.connection != from) { // 已完成或已重发
+				return;
+			}
+			request.connection = null;
+		}
+		from.outstanding.decrementAndGet();
+		send(request);
+	}
+
+	private void release(Pending request) {
+		Connection connection;
+		synchronized (request) {
+			connection = request.connection;
+			request.connection = null;
+			request.frame = null;
+		}
+		if (connection != null) {
+			connection.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 轮询或按在途请求最少选择一个活动连接，全部断开时返回 null
+	 */
+	private Connection select() {
+		if (leastOutstanding) {
+			Connection best = null;
+			for (Connection connection : connections) {
+				if (connection.channel.isActive()
+						&& (best == null || connection.outstanding.get() < best.outstanding.get())) {
+					best = connection;
+				}
+			}
+			return best;
+		}
+		for (int i = 0; i < connections.length; i++) {
+			Connection connection = connections[(next.getAndIncrement() & 0x7FFFFFFF) % connections.length];
+			if (connection.channel.isActive()) {
+				return connection;
+			}
+		}
+		return null;
 	}
 
 	@Override
-	public void asyncSendMessage(Message message, SendCallback callback) {
+	public void asyncSendMessages(List<Message> messages, SendCallback callback) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		prepare(messages);
+		asyncSend(messages, new Frame(messages), callback);
+	}
+
+	/**
+	 * 登记到在途表后发出，由 broker 的 ack 完成；超时、写失败或连接断开时以失败回调。
+	 * 在途数达到 mom.maxInflight 时阻塞调用线程，最多等待 sendTimeout，或在 mom.rejectWhenFull 时直接失败
+	 */
+	private void asyncSend(List<Message> messages, Frame frame, SendCallback callback) {
+		final long id = messages.get(0).getIdLow();
 		try {
+			boolean acquired = rejectWhenFull ? window.tryAcquire() : window.tryAcquire(sendTimeout,
+					TimeUnit.MILLISECONDS);
+			if (acquired == false) {
+				callback(messages, callback, null, "too many in-flight sends");
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			callback(messages, callback, null, "interrupted");
+			return;
+		}
+
+		Timeout timeout = timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				complete(id, null, "timeout");
+			}
+		}, sendTimeout, TimeUnit.MILLISECONDS);
+		InFlight request = new InFlight(messages, frame, callback, timeout);
+		inflight.put(id, request);
+		send(request);
+	}
+
+	/**
+	 * 移出在途表并回调，ack 与超时、断开之间只有先到的一方生效
+	 */
+	private void complete(long id, Frame ack, String info) {
+		InFlight request = inflight.remove(id);
+		if (request == null) {
+			return;
+		}
+		request.timeout.cancel();
+		release(request);
+		window.release();
+		callback(request.messages, request.callback, ack, info);
+	}
+
+	private static void callback(List<Message> messages, SendCallback callback, Frame ack, String info) {
+		for (SendResult result : results(messages, ack, info)) {
+			callback.onResult(result);
+		}
+	}
+
+	private void prepare(List<Message> messages) {
+		long bornTime = System.currentTimeMillis();
+		for (Message message : messages) {
 			message.setTopic(topic);
-			message.setMsgId(Long.toString(messageCount.incrementAndGet()));
-			message.setBornTime(System.currentTimeMillis());
-
-			final Message asynMessage = message;
-			final SendCallback asynCallback = callback;
-
-			ChannelFuture f = context.writeAndFlush(new Gson().toJson(message) + "\r\n");
-			f.addListener(new ChannelFutureListener() {
-
-				@Override
-				public void operationComplete(ChannelFuture future) throws Exception {
-					if (future.isSuccess()) {
-						final SendResult sendResult = new SendResult();
-						sendResult.setStatus(SendStatus.SUCCESS);
-						sendResult.setMsgId(asynMessage.getMsgId());
-						asynCallback.onResult(sendResult);
-					} else {
-						final SendResult sendResult = new SendResult();
-						sendResult.setStatus(SendStatus.FAIL);
-						sendResult.setMsgId(asynMessage.getMsgId());
-						asynCallback.onResult(sendResult);
-
-						Throwable cause = future.cause();
-						cause.printStackTrace();
-					}
-				}
-			});
-		} catch (Exception e) {
-			e.printStackTrace();
+			message.setId(MessageId.NODE, MessageId.next());
+			message.setBornTime(bornTime);
+			compress(message);
+		}
+	}
+
+	/**
+	 * 在发送线程上压缩达到阈值的 body，压缩后不变小的保持原样。broker 原样存储，消费者读取时解压
+	 */
+	private void compress(Message message) {
+		byte[] body = message.getRawBody();
+		if (codec == Codec.NONE || message.getCodec() != Codec.NONE || body == null || body.length < compressThreshold) {
+			return;
+		}
+		byte[] compressed = Codec.compress(codec, body);
+		if (compressed != null) {
+			message.setRawBody(compressed, codec);
 		}
 	}
 
+	/**
+	 * 按 ack 中每条消息的状态生成发送结果，body 为空的 ack 表示全部成功，ack 为 null 时全部失败
+	 *
+	 * @param info
+	 *            ack 为 null 时的失败原因
+	 */
+	private static List<SendResult> results(List<Message> messages, Frame ack, String info) {
+		List<SendResult> results = new ArrayList<SendResult>(messages.size());
+		byte[] statuses = ack == null ? null : ack.getMessage().getBody();
+		for (int i = 0; i < messages.size(); i++) {
+			SendResult result = new SendResult();
+			result.setMsgId(messages.get(i).getMsgId());
+			if (statuses != null && (statuses.length == 0 || statuses[i] == SendStatus.SUCCESS.ordinal())) {
+				result.setStatus(SendStatus.SUCCESS);
+			} else {
+				result.setStatus(SendStatus.FAIL);
+				result.setInfo(ack == null ? info : "store failed");
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
 	@Override
 	public void stop() {
 		try {
-			context.channel().close();
+			for (Connection connection : connections) {
+				connection.channel.close();
+			}
 			workerGroup.shutdownGracefully();
+			timer.stop();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,154 @@
+package com.alibaba.middleware.race.mom;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+
+/**
+ * 拉取消费者。每次拉取带一个请求号，多个线程可以在同一连接上同时拉取不同的 topic 或偏移，
+ * 响应按请求号交回等待的线程
+ */
+public class DefaultPullConsumer implements PullConsumer {
+	private String brokerIp;
+
+	private EventLoopGroup workerGroup;
+	private Channel channel;
+	private AtomicLong sequence = new AtomicLong(); // 请求号
+	private Map<Long, Request> requests = new ConcurrentHashMap<Long, Request>(); // 等待响应的拉取和定位
+	private long pullTimeout = Long.getLong("mom.pullTimeout", 3000); // 毫秒，在 maxWait 之外等待响应的时间
+
+	private static class Request {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Frame reply;
+	}
+
+	public DefaultPullConsumer() {
+		brokerIp = System.getProperty("SIP", "localhost");
+		workerGroup = Transport.newGroup(0);
+
+		try {
+			Bootstrap b = new Bootstrap();
+			b.group(workerGroup).channel(Transport.channel()).option(ChannelOption.TCP_NODELAY, Transport.TCP_NODELAY)
+					.handler(new ChannelInitializer<SocketChannel>() {
+						@Override
+						public void initChannel(SocketChannel ch) throws Exception {
+							ChannelPipeline pipeline = ch.pipeline();
+							pipeline.addLast("flush", new FlushConsolidator());
+							pipeline.addLast("decoder", new FrameDecoder());
+							pipeline.addLast("encoder", new FrameEncoder());
+							pipeline.addLast("handler", new DefaultPullConsumerHandler());
+						}
+					});
+
+			channel = b.connect(brokerIp, 9999).sync().channel();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void start() {
+
+	}
+
+	@Override
+	public PullResult pull(String topic, long offset, int maxMessages, long maxWait) {
+		long id = sequence.incrementAndGet();
+		Message message = new Message();
+		message.setId(0, id);
+		message.setTopic(topic);
+		message.setBody(ByteBuffer.allocate(8 + 4 + 8).putLong(offset).putInt(maxMessages).putLong(maxWait).array());
+
+		Frame reply = request(id, new Frame(Frame.PULL, message), Math.max(maxWait, 0) + pullTimeout);
+		if (reply != null) {
+			return reply.getResult();
+		}
+
+		PullResult result = new PullResult();
+		result.setStatus(PullStatus.FAIL);
+		result.setInfo(channel.isActive() ? "拉取超时" : "连接已断开");
+		result.setNextOffset(offset);
+		return result;
+	}
+
+	@Override
+	public long getOffsetByTime(String topic, long timestamp) {
+		long id = sequence.incrementAndGet();
+		Frame reply = request(id, Frame.seek(id, topic, (byte) 1, timestamp), pullTimeout);
+		return reply == null ? -1 : ByteBuffer.wrap(reply.getMessage().getBody()).getLong();
+	}
+
+	/**
+	 * 发出请求并等待同一请求号的响应，超时或连接断开时返回 null
+	 */
+	private Frame request(long id, Frame frame, long timeout) {
+		Request request = new Request();
+		requests.put(id, request);
+		channel.writeAndFlush(frame);
+		try {
+			request.done.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			requests.remove(id);
+		}
+		return request.reply;
+	}
+
+	public class DefaultPullConsumerHandler extends SimpleChannelInboundHandler<Frame> {
+		@Override
+		public void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+			long id;
+			if (frame.getOpcode() == Frame.MESSAGES) {
+				id = frame.getSequence();
+			} else if (frame.getOpcode() == Frame.SEEK) {
+				id = frame.getMessage().getIdLow();
+			} else {
+				return;
+			}
+			Request request = requests.get(id);
+			if (request == null) { // 已超时
+				return;
+			}
+			request.reply = frame;
+			request.done.countDown();
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+			for (Request request : requests.values()) { // 不再等待响应
+				request.done.countDown();
+			}
+			ctx.fireChannelInactive();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			cause.printStackTrace();
+			ctx.close();
+		}
+	}
+
+	@Override
+	public void stop() {
+		try {
+			channel.close();
+			workerGroup.shutdownGracefully();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
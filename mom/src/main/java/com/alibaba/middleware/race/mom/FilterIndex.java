@@ -0,0 +1,118 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单个 topic 的属性过滤倒排索引：(key, value) 》 带有该条件的过滤器。
+ * 消息按自身的每个属性查一次索引并累计命中数，命中数等于条件数的过滤器即为匹配，
+ * 开销只与消息属性个数和命中数有关，与过滤器总数无关。
+ *
+ * 非线程安全，由 topic 所在的推送线程独占访问
+ */
+class FilterIndex<T> {
+	private static class Entry<T> {
+		private final T target;
+		private final int conditions;
+		private int hits;
+		private long round = -1;
+
+		public Entry(T target, int conditions) {
+			this.target = target;
+			this.conditions = conditions;
+		}
+	}
+
+	private final Map<String, Map<String, List<Entry<T>>>> index = new HashMap<String, Map<String, List<Entry<T>>>>();
+	private final List<Entry<T>> unconditional = new ArrayList<Entry<T>>(); // 空过滤条件，接受所有消息
+	private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+	private final Map<T, MessageFilter> filters = new HashMap<T, MessageFilter>();
+	private long round = 0;
+
+	public void add(T target, MessageFilter filter) {
+		Entry<T> entry = new Entry<T>(target, filter.size());
+		entries.put(target, entry);
+		filters.put(target, filter);
+
+		if (filter.size() == 0) {
+			unconditional.add(entry);
+			return;
+		}
+		for (int i = 0; i < filter.size(); i++) {
+			Map<String, List<Entry<T>>> values = index.get(filter.getKey(i));
+			if (values == null) {
+				values = new HashMap<String, List<Entry<T>>>();
+				index.put(filter.getKey(i), values);
+			}
+			List<Entry<T>> list = values.get(filter.getValue(i));
+			if (list == null) {
+				list = new ArrayList<Entry<T>>();
+				values.put(filter.getValue(i), list);
+			}
+			list.add(entry);
+		}
+	}
+
+	public void remove(T target) {
+		Entry<T> entry = entries.remove(target);
+		MessageFilter filter = filters.remove(target);
+		if (entry == null) {
+			return;
+		}
+
+		if (filter.size() == 0) {
+			unconditional.remove(entry);
+			return;
+		}
+		for (int i = 0; i < filter.size(); i++) {
+			Map<String, List<Entry<T>>> values = index.get(filter.getKey(i));
+			List<Entry<T>> list = values.get(filter.getValue(i));
+			list.remove(entry);
+			if (list.isEmpty()) {
+				values.remove(filter.getValue(i));
+				if (values.isEmpty()) {
+					index.remove(filter.getKey(i));
+				}
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * 将过滤条件被 properties 满足的目标追加到 matched
+	 */
+	public void match(Map<String, String> properties, List<T> matched) {
+		for (Entry<T> entry : unconditional) {
+			matched.add(entry.target);
+		}
+		if (index.isEmpty()) {
+			return;
+		}
+
+		round++;
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			Map<String, List<Entry<T>>> values = index.get(property.getKey());
+			if (values == null) {
+				continue;
+			}
+			List<Entry<T>> list = values.get(property.getValue());
+			if (list == null) {
+				continue;
+			}
+			for (Entry<T> entry : list) {
+				if (entry.round != round) {
+					entry.round = round;
+					entry.hits = 0;
+				}
+				if (++entry.hits == entry.conditions) {
+					matched.add(entry.target);
+				}
+			}
+		}
+	}
+}
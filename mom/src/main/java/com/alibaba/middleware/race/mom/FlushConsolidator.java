@@ -0,0 +1,145 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * 合并 flush，放在 encoder 与 socket 之间，每个连接一个实例，只在连接的 I/O 线程上调用。
+ *
+ * 其他线程的 writeAndFlush 在 I/O 线程上逐个执行，这里只记下待刷，排一个 flush 任务到已提交的写入之后，
+ * 同一轮任务中的写入一次系统调用发出；读事件中产生的 flush 推迟到 channelReadComplete。
+ * mom.flushDelay（毫秒，可用 mom.flushDelay.{topic} 按 topic 设置）大于 0 时最多再等这么久以攒更多写入，
+ * 待刷写入数达到 mom.flushMaxWrites 或连接不可写时立即 flush。
+ *
+ * mom.flushStatsInterval（毫秒）大于 0 时定期打印本进程所有连接的 flush 次数、平均每次写入条数和字节数
+ */
+class FlushConsolidator extends ChannelDuplexHandler {
+	private static final long STATS_INTERVAL = Long.getLong("mom.flushStatsInterval", 0);
+	private static final boolean STATS = STATS_INTERVAL > 0; // 不打印统计时不计数，写入路径上没有共享的原子操作
+	private static final AtomicLong flushes = new AtomicLong();
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+
+	static {
+		if (STATS) {
+			ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory(
+					"flush-stats", true));
+			reporter.scheduleAtFixedRate(new Runnable() {
+				private long lastFlushes, lastWrites, lastBytes;
+
+				@Override
+				public void run() {
+					long f = flushes.get(), w = writes.get(), b = bytes.get();
+					long df = f - lastFlushes;
+					if (df > 0) {
+						System.out.println("flush " + df + " 次，平均每次 " + (w - lastWrites) / df + " 条 "
+								+ (b - lastBytes) / df + " 字节");
+					}
+					lastFlushes = f;
+					lastWrites = w;
+					lastBytes = b;
+				}
+			}, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private final int maxWrites = Integer.getInteger("mom.flushMaxWrites", 256);
+	private volatile long maxDelay = Long.getLong("mom.flushDelay", 0);
+	private ChannelHandlerContext ctx;
+	private boolean reading;
+	private boolean scheduled;
+	private int pending; // 上次 flush 之后的写入数
+	private long pendingBytes; // 上次 flush 之后写入的字节数，只在统计时累加
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			scheduled = false;
+			flushNow();
+		}
+	};
+
+	/**
+	 * @return topic 的最大合并延迟，毫秒
+	 */
+	public static long maxDelay(String topic) {
+		return Long.getLong("mom.flushDelay." + topic, Long.getLong("mom.flushDelay", 0));
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		reading = true;
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		reading = false;
+		if (pending > 0 && scheduled == false) {
+			flushNow();
+		}
+		ctx.fireChannelReadComplete();
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+		pending++;
+		if (STATS && msg instanceof ByteBuf) {
+			pendingBytes += ((ByteBuf) msg).readableBytes();
+		}
+		ctx.write(msg, promise);
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		if (pending >= maxWrites || ctx.channel().isWritable() == false) {
+			flushNow();
+		} else if (reading || scheduled) { // 读完或任务执行时一起刷
+			return;
+		} else {
+			scheduled = true;
+			if (maxDelay > 0) {
+				ctx.executor().schedule(flushTask, maxDelay, TimeUnit.MILLISECONDS);
+			} else {
+				ctx.executor().execute(flushTask);
+			}
+		}
+	}
+
+	@Override
+	public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+		flushNow();
+		ctx.close(promise);
+	}
+
+	private void flushNow() {
+		if (pending == 0) {
+			return;
+		}
+		if (STATS) { // 每次 flush 汇总一次到全局计数
+			flushes.incrementAndGet();
+			writes.addAndGet(pending);
+			bytes.addAndGet(pendingBytes);
+			pendingBytes = 0;
+		}
+		pending = 0;
+		ctx.flush();
+	}
+}
@@ -0,0 +1,404 @@
+package com.alibaba.middleware.race.mom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * 二进制帧：
+ *
+ * <pre>
+ * int    length       （不含自身）
+ * byte   opcode
+ * long   sequence     （仅 PUSH）
+ * long   msgId 高 64 位 （见 MessageId）
+ * long   msgId 低 64 位
+ * long   bornTime
+ * short  topicLength + topic
+ * short  propertyCount + (short keyLength + key, short valueLength + value)*
+ *        （字符串长度为 -1 表示 null，0 表示空串）
+ * byte   codec        （body 的压缩方式，见 Codec）
+ * int    bodyLength + body
+ * </pre>
+ *
+ * consumer 的 ACK 帧 body 为 long 累计确认序号（之前的推送均已确认）+ 之后已确认推送的位图，
+ * NACK 帧 body 为消费失败的推送序号。
+ *
+ * BATCH 帧在 opcode 之后为 int count + count 个完整的 MESSAGE 帧，整批作为一条记录写入 commit log；
+ * broker 回复一个 ACK 帧，msgId 为第一条消息的 msgId，body 为每条消息的 SendStatus。
+ *
+ * PULL 帧的 msgId 低 64 位为请求号，body 为 long offset + int maxMessages + long maxWait；broker 回复 MESSAGES 帧：
+ *
+ * <pre>
+ * int    length
+ * byte   opcode
+ * long   请求号
+ * long   nextOffset
+ * long   maxOffset
+ * int    count + count 个完整的 MESSAGE 帧
+ * </pre>
+ *
+ * SEEK 帧的 msgId 低 64 位为请求号，body 为 byte 定位方式（0 按逻辑偏移，1 按 bornTime）+ long 值；broker 回复 SEEK 帧，
+ * body 为定位到的逻辑偏移。推送消费者的连接上同时把该 topic 的订阅重置到这个位置
+ *
+ * broker 端的生产帧只解析头部，原始帧原样写入 commit log，推送时只新写 PUSH 头，消息部分与原始帧共享；
+ * 拉取结果同样只新写头部，各条消息是存储中原始帧的视图
+ */
+class Frame {
+	static final byte MESSAGE = 1; // producer 》 broker，生产
+	static final byte ACK = 2; // broker 》 producer，生产确认；consumer 》 broker，批量消费确认
+	static final byte SUB = 3; // consumer 》 broker，订阅
+	static final byte PUSH = 4; // broker 》 consumer，推送，带连接内递增的序号
+	static final byte BATCH = 5; // producer 》 broker，批量生产
+	static final byte NACK = 6; // consumer 》 broker，本地重试后仍消费失败，请求重投
+	static final byte PULL = 7; // consumer 》 broker，拉取
+	static final byte MESSAGES = 8; // broker 》 consumer，拉取结果，带请求号
+	static final byte SEEK = 9; // consumer 》 broker，按偏移或时间定位；broker 》 consumer，定位结果
+
+	static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private static Charset charset = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+
+	private byte opcode;
+	private long sequence;
+	private Message message;
+	private List<Message> messages; // BATCH
+	private ByteBuf raw; // broker 端保留的原始帧（含长度前缀），message 中没有 body
+	private List<Frame> frames; // broker 端 BATCH 中的各条消息，raw 为整批原始帧的切片
+	private PullResult result; // MESSAGES
+
+	public Frame(byte opcode, Message message) {
+		this.opcode = opcode;
+		this.message = message;
+	}
+
+	public Frame(byte opcode, Message message, long sequence) {
+		this.opcode = opcode;
+		this.message = message;
+		this.sequence = sequence;
+	}
+
+	public Frame(List<Message> messages) {
+		this.opcode = BATCH;
+		this.messages = messages;
+	}
+
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	public List<Message> getMessages() {
+		return messages;
+	}
+
+	public ByteBuf getRaw() {
+		return raw;
+	}
+
+	public List<Frame> getFrames() {
+		return frames;
+	}
+
+	public PullResult getResult() {
+		return result;
+	}
+
+	/**
+	 * 释放原始帧，BATCH 连同其中各条消息
+	 */
+	public void release() {
+		if (frames != null) {
+			for (Frame frame : frames) {
+				frame.release();
+			}
+		}
+		if (raw != null) {
+			raw.release();
+		}
+	}
+
+	/**
+	 * 转成推送帧。有原始帧时只新写 13 字节的 PUSH 头，消息部分是原始帧的切片（增加引用计数），不再编码和复制
+	 */
+	public Object push(long sequence) {
+		if (raw == null) {
+			return new Frame(PUSH, message, sequence);
+		}
+		ByteBuf header = Unpooled.buffer(4 + 1 + 8);
+		header.writeInt(raw.readableBytes() - 4 + 8);
+		header.writeByte(PUSH);
+		header.writeLong(sequence);
+		ByteBuf rest = raw.slice(raw.readerIndex() + 4 + 1, raw.readableBytes() - 4 - 1).retain();
+		return Unpooled.wrappedBuffer(header, rest);
+	}
+
+	public static Frame ack(long msgIdHigh, long msgIdLow) {
+		Message message = new Message();
+		message.setId(msgIdHigh, msgIdLow);
+		return new Frame(ACK, message);
+	}
+
+	/**
+	 * 批量生产的确认
+	 */
+	public static Frame ack(long msgIdHigh, long msgIdLow, SendStatus[] statuses) {
+		byte[] body = new byte[statuses.length];
+		for (int i = 0; i < statuses.length; i++) {
+			body[i] = (byte) statuses[i].ordinal();
+		}
+		Message message = new Message();
+		message.setId(msgIdHigh, msgIdLow);
+		message.setBody(body);
+		return new Frame(ACK, message);
+	}
+
+	/**
+	 * @param sequence
+	 *            累计确认序号，之前的推送均已确认
+	 * @param acked
+	 *            第 i 位表示序号 sequence + i 已确认
+	 */
+	public static Frame ack(long sequence, BitSet acked) {
+		byte[] bitmap = acked.toByteArray();
+		Message message = new Message();
+		message.setBody(ByteBuffer.allocate(8 + bitmap.length).putLong(sequence).put(bitmap).array());
+		return new Frame(ACK, message);
+	}
+
+	/**
+	 * @param sequence
+	 *            消费失败的推送序号
+	 */
+	public static Frame nack(long sequence) {
+		Message message = new Message();
+		message.setBody(ByteBuffer.allocate(8).putLong(sequence).array());
+		return new Frame(NACK, message);
+	}
+
+	/**
+	 * @param sequence
+	 *            拉取请求号
+	 * @param messages
+	 *            存储中的原始 MESSAGE 帧（含长度前缀），直接作为响应的一部分，不复制
+	 */
+	public static ByteBuf messages(long sequence, long nextOffset, long maxOffset, List<ByteBuffer> messages) {
+		ByteBuf[] parts = new ByteBuf[messages.size() + 1];
+		int length = 1 + 8 + 8 + 8 + 4;
+		for (int i = 0; i < messages.size(); i++) {
+			parts[i + 1] = Unpooled.wrappedBuffer(messages.get(i));
+			length += parts[i + 1].readableBytes();
+		}
+		ByteBuf header = Unpooled.buffer(4 + 1 + 8 + 8 + 8 + 4);
+		header.writeInt(length);
+		header.writeByte(MESSAGES);
+		header.writeLong(sequence);
+		header.writeLong(nextOffset);
+		header.writeLong(maxOffset);
+		header.writeInt(messages.size());
+		parts[0] = header;
+		return Unpooled.wrappedBuffer(parts);
+	}
+
+	/**
+	 * @param sequence
+	 *            请求号
+	 * @param by
+	 *            0 按逻辑偏移，1 按 bornTime
+	 */
+	public static Frame seek(long sequence, String topic, byte by, long value) {
+		Message message = new Message();
+		message.setId(0, sequence);
+		message.setTopic(topic);
+		message.setBody(ByteBuffer.allocate(1 + 8).put(by).putLong(value).array());
+		return new Frame(SEEK, message);
+	}
+
+	public void writeTo(ByteBuf out) {
+		int start = out.writerIndex();
+		out.writeInt(0);
+		out.writeByte(opcode);
+		if (opcode == BATCH) {
+			out.writeInt(messages.size());
+			for (Message message : messages) {
+				new Frame(MESSAGE, message).writeTo(out);
+			}
+			out.setInt(start, out.writerIndex() - start - 4);
+			return;
+		}
+		if (opcode == PUSH) {
+			out.writeLong(sequence);
+		}
+		out.writeLong(message.getIdHigh());
+		out.writeLong(message.getIdLow());
+		out.writeLong(message.getBornTime());
+		writeString(out, message.getTopic());
+
+		Map<String, String> properties = message.getProperties();
+		out.writeShort(properties.size());
+		for (Map.Entry<String, String> entry : properties.entrySet()) {
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+
+		byte[] body;
+		byte codec;
+		synchronized (message) { // body 与 codec 成对读取，期间不会被其他线程解压
+			body = message.getRawBody() == null ? EMPTY : message.getRawBody();
+			codec = message.getCodec();
+		}
+		out.writeByte(codec);
+		out.writeInt(body.length);
+		out.writeBytes(body);
+
+		out.setInt(start, out.writerIndex() - start - 4);
+	}
+
+	/**
+	 * @param in
+	 *            已去掉长度前缀的帧
+	 */
+	public static Frame readFrom(ByteBuf in) {
+		return readFrom(in, true);
+	}
+
+	/**
+	 * broker 端解码生产帧：只解析 msgId、topic、属性等头部字段，不复制 body，保留原始帧。
+	 * 各条消息的 raw 是 raw 的切片，各自持有一次引用
+	 *
+	 * @param raw
+	 *            含长度前缀的完整帧，交由返回的 Frame 持有
+	 */
+	public static Frame readHeader(ByteBuf raw) {
+		ByteBuf in = raw.duplicate();
+		in.skipBytes(4);
+		if (in.getByte(in.readerIndex()) != BATCH) {
+			Frame frame = readFrom(in, false);
+			frame.raw = raw;
+			return frame;
+		}
+
+		in.skipBytes(1);
+		int count = in.readInt();
+		if (count < 0 || count > in.readableBytes() / 4) { // 每条消息至少有 4 字节的长度前缀
+			throw new IllegalArgumentException("invalid batch count: " + count);
+		}
+		List<Frame> frames = new ArrayList<Frame>(count);
+		List<Message> messages = new ArrayList<Message>(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				int size = 4 + in.getInt(in.readerIndex());
+				ByteBuf slice = raw.slice(in.readerIndex(), size).retain();
+				Frame frame;
+				try {
+					frame = readHeader(slice);
+				} catch (RuntimeException e) {
+					slice.release();
+					throw e;
+				}
+				frames.add(frame);
+				messages.add(frame.message);
+				in.skipBytes(size);
+			}
+		} catch (RuntimeException e) { // 已解析的消息各持有一次引用，整帧由调用方释放
+			for (Frame frame : frames) {
+				frame.release();
+			}
+			throw e;
+		}
+		Frame frame = new Frame(messages);
+		frame.frames = frames;
+		frame.raw = raw;
+		return frame;
+	}
+
+	private static Frame readFrom(ByteBuf in, boolean body) {
+		byte opcode = in.readByte();
+		if (opcode == BATCH) {
+			int count = in.readInt();
+			List<Message> messages = new ArrayList<Message>(count);
+			for (int i = 0; i < count; i++) {
+				in.skipBytes(4);
+				messages.add(readFrom(in).getMessage());
+			}
+			return new Frame(messages);
+		}
+		if (opcode == MESSAGES) {
+			Frame frame = new Frame(MESSAGES, null, in.readLong());
+			frame.result = new PullResult();
+			frame.result.setNextOffset(in.readLong());
+			frame.result.setMaxOffset(in.readLong());
+			int count = in.readInt();
+			List<Message> messages = new ArrayList<Message>(count);
+			for (int i = 0; i < count; i++) {
+				in.skipBytes(4);
+				messages.add(readFrom(in).getMessage());
+			}
+			frame.result.setMessages(messages);
+			frame.result.setStatus(count > 0 ? PullStatus.FOUND : PullStatus.NO_NEW_MESSAGE);
+			return frame;
+		}
+		long sequence = opcode == PUSH ? in.readLong() : 0;
+		Message message = new Message();
+		message.setId(in.readLong(), in.readLong());
+		message.setBornTime(in.readLong());
+		message.setTopic(readString(in));
+
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			message.setProperty(readString(in), readString(in));
+		}
+
+		if (body) {
+			byte codec = in.readByte();
+			byte[] bytes = new byte[in.readInt()];
+			in.readBytes(bytes);
+			message.setRawBody(bytes, codec);
+		}
+
+		return new Frame(opcode, message, sequence);
+	}
+
+	/**
+	 * 长度 -1 表示 null，0 表示空串；UTF-8 编码后超过 Short.MAX_VALUE 字节时抛出 IllegalArgumentException
+	 */
+	private static void writeString(ByteBuf out, String string) {
+		if (string == null) {
+			out.writeShort(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes(charset);
+		if (bytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("string too long: " + bytes.length + " bytes");
+		}
+		out.writeShort(bytes.length);
+		out.writeBytes(bytes);
+	}
+
+	private static String readString(ByteBuf in) {
+		int length = in.readShort();
+		if (length < 0) {
+			return null;
+		}
+		if (length == 0) {
+			return "";
+		}
+		String string = in.toString(in.readerIndex(), length, charset);
+		in.skipBytes(length);
+		return string;
+	}
+}
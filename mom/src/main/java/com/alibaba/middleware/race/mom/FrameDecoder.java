@@ -0,0 +1,48 @@
+package com.alibaba.middleware.race.mom;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+class FrameDecoder extends LengthFieldBasedFrameDecoder {
+	private final boolean retain;
+
+	public FrameDecoder() {
+		this(false);
+	}
+
+	/**
+	 * @param retain
+	 *            为 true 时（broker 端）生产帧只解析头部并保留原始帧，由使用方 release
+	 */
+	public FrameDecoder(boolean retain) {
+		super(Frame.MAX_FRAME_LENGTH, 0, 4, 0, retain ? 0 : 4);
+		this.retain = retain;
+	}
+
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+		ByteBuf buf = (ByteBuf) super.decode(ctx, in);
+		if (buf == null) {
+			return null;
+		}
+		if (retain) {
+			byte opcode = buf.getByte(buf.readerIndex() + 4);
+			if (opcode == Frame.MESSAGE || opcode == Frame.BATCH) {
+				try {
+					return Frame.readHeader(buf);
+				} catch (RuntimeException e) {
+					buf.release();
+					throw e;
+				}
+			}
+			buf.skipBytes(4);
+		}
+
+		try {
+			return Frame.readFrom(buf);
+		} finally {
+			buf.release();
+		}
+	}
+}
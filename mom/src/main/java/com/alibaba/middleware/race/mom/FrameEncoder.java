@@ -0,0 +1,15 @@
+package com.alibaba.middleware.race.mom;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+@Sharable
+class FrameEncoder extends MessageToByteEncoder<Frame> {
+
+	@Override
+	protected void encode(ChannelHandlerContext ctx, Frame frame, ByteBuf out) throws Exception {
+		frame.writeTo(out);
+	}
+}
@@ -0,0 +1,111 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.Arrays;
+
+/**
+ * long 》 int 的开放寻址散列表，线性探测，删除时把同一探测链上之后的条目前移，不留墓碑。
+ * 键和值放在基本类型数组里，不装箱，不为条目分配对象，只在装载超过一半时按 2 倍扩容。
+ * 值不能为负，-1 表示不存在。不是线程安全的
+ */
+class LongIntMap {
+	private long[] keys;
+	private int[] values; // -1 为空位
+	private int mask;
+	private int size;
+
+	public LongIntMap(int capacity) {
+		int length = 2;
+		while (length < capacity * 2) {
+			length <<= 1;
+		}
+		allocate(length);
+	}
+
+	private void allocate(int length) {
+		keys = new long[length];
+		values = new int[length];
+		Arrays.fill(values, -1);
+		mask = length - 1;
+	}
+
+	private int index(long key) { // 逻辑偏移是连续的，乘法散列打散到各个位置
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+
+	public int get(long key) {
+		for (int i = index(key); values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+		}
+		return -1;
+	}
+
+	public void put(long key, int value) {
+		int i = index(key);
+		for (; values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > values.length) {
+			resize();
+		}
+	}
+
+	/**
+	 * @return 原来的值，不存在时返回 -1
+	 */
+	public int remove(long key) {
+		int i = index(key);
+		for (; values[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				break;
+			}
+		}
+		int value = values[i];
+		if (value == -1) {
+			return -1;
+		}
+
+		int hole = i;
+		for (int j = (i + 1) & mask; values[j] != -1; j = (j + 1) & mask) {
+			if (((j - index(keys[j])) & mask) >= ((j - hole) & mask)) { // 空位在该条目的探测路径上
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		values[hole] = -1;
+		size--;
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(values, -1);
+		size = 0;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldValues.length * 2);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != -1) {
+				int j = index(oldKeys[i]);
+				while (values[j] != -1) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.NoSuchElementException;
+
+/**
+ * long 的环形队列，元素放在基本类型数组里，不装箱，容量用满时按 2 倍扩容。不是线程安全的
+ */
+class LongQueue {
+	private long[] elements;
+	private int head; // 队首下标
+	private int tail; // 下一个入队的下标
+
+	public LongQueue() {
+		this(16);
+	}
+
+	public LongQueue(int capacity) {
+		int length = 2;
+		while (length < capacity) {
+			length <<= 1;
+		}
+		elements = new long[length];
+	}
+
+	public void add(long element) {
+		elements[tail] = element;
+		tail = (tail + 1) & (elements.length - 1);
+		if (tail == head) {
+			grow();
+		}
+	}
+
+	/**
+	 * @throws NoSuchElementException 队列为空
+	 */
+	public long peek() {
+		if (head == tail) {
+			throw new NoSuchElementException();
+		}
+		return elements[head];
+	}
+
+	/**
+	 * @throws NoSuchElementException 队列为空
+	 */
+	public long poll() {
+		long element = peek();
+		head = (head + 1) & (elements.length - 1);
+		return element;
+	}
+
+	public boolean isEmpty() {
+		return head == tail;
+	}
+
+	public int size() {
+		return (tail - head) & (elements.length - 1);
+	}
+
+	public void clear() {
+		head = 0;
+		tail = 0;
+	}
+
+	private void grow() { // 队列已满，head == tail
+		long[] grown = new long[elements.length * 2];
+		System.arraycopy(elements, head, grown, 0, elements.length - head);
+		System.arraycopy(elements, 0, grown, elements.length - head, head);
+		tail = elements.length;
+		head = 0;
+		elements = grown;
+	}
+}
@@ -11,8 +11,11 @@ public class Message implements Serializable{
 	private static final long serialVersionUID = 5295808332504208830L;
 	private String topic;
 	private byte[] body;
+	private volatile byte codec = Codec.NONE; // body 的压缩方式，第一次 getBody 时解压
 	//全局唯一的消息id，不同消息不能重复
-	private String msgId;
+	private String msgId; // 显示用，由 idHigh、idLow 生成
+	private long idHigh; // 128 位 id，见 MessageId
+	private long idLow;
 	private long bornTime;
 	
 	private Map<String, String> properties = new HashMap<String, String>();
@@ -21,26 +24,77 @@ public class Message implements Serializable{
 		this.topic = topic;
 	}
 	public String getMsgId() {
+		if (msgId == null && (idHigh | idLow) != 0) {
+			msgId = MessageId.toString(idHigh, idLow);
+		}
 		return msgId;
 	}
 	public void setMsgId(String msgId) {
+		long[] id = msgId == null ? null : MessageId.parse(msgId);
 		this.msgId = msgId;
+		this.idHigh = id == null ? 0 : id[0];
+		this.idLow = id == null ? 0 : id[1];
+	}
+	long getIdHigh() {
+		return idHigh;
+	}
+	long getIdLow() {
+		return idLow;
+	}
+	void setId(long high, long low) {
+		this.idHigh = high;
+		this.idLow = low;
+		this.msgId = null;
 	}
 	public String getTopic() {
 		return topic;
 	}
 
-	public void setBody(byte[] body) {
+	public synchronized void setBody(byte[] body) {
 		this.body = body;
+		this.codec = Codec.NONE;
 	}
 
+	/**
+	 * 多个监听线程读同一条消息时只解压一次。codec 为 volatile，在 body 之后写入，读到 NONE 的线程一定看到解压后的 body，
+	 * 解压之后不再加锁
+	 */
 	public byte[] getBody() {
+		if (codec != Codec.NONE) {
+			inflate();
+		}
+		return body;
+	}
+
+	private synchronized void inflate() {
+		if (codec != Codec.NONE) {
+			body = Codec.decompress(codec, body);
+			codec = Codec.NONE;
+		}
+	}
+
+	/**
+	 * 未解压的 body，编码时原样写出。与 getCodec 一起在消息的锁内读取，避免中间被解压
+	 */
+	byte[] getRawBody() {
 		return body;
 	}
 
+	byte getCodec() {
+		return codec;
+	}
+
+	synchronized void setRawBody(byte[] body, byte codec) {
+		this.body = body;
+		this.codec = codec;
+	}
+
 	public String getProperty(String key) {
 		return properties.get(key);
 	}
+	Map<String, String> getProperties() {
+		return properties;
+	}
 	/**
 	 * 设置消息属性
 	 * @param key
@@ -0,0 +1,72 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.Map;
+
+/**
+ * 订阅时编译好的属性过滤条件，推送时直接按键取值比较，不再反射读取 Message.properties
+ */
+class MessageFilter {
+	private final String[] keys;
+	private final String[] values;
+
+	private MessageFilter(String[] keys, String[] values) {
+		this.keys = keys;
+		this.values = values;
+	}
+
+	public static MessageFilter compile(Map<String, String> properties) {
+		String[] keys = new String[properties.size()];
+		String[] values = new String[properties.size()];
+		int i = 0;
+		for (Map.Entry<String, String> entry : properties.entrySet()) {
+			keys[i] = entry.getKey();
+			values[i] = entry.getValue();
+			i++;
+		}
+		return new MessageFilter(keys, values);
+	}
+
+	/**
+	 * @return 过滤条件不合法的原因（键为空、值为 null），合法时返回 null
+	 */
+	public static String validate(Map<String, String> properties) {
+		for (Map.Entry<String, String> entry : properties.entrySet()) {
+			if (entry.getKey() == null || entry.getKey().isEmpty()) {
+				return "过滤条件缺少属性名";
+			}
+			if (entry.getValue() == null) {
+				return "过滤条件 " + entry.getKey() + " 缺少属性值";
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	public String getKey(int i) {
+		return keys[i];
+	}
+
+	public String getValue(int i) {
+		return values[i];
+	}
+
+	/**
+	 * 过滤条件为空时接受所有消息，否则每个条件都要被消息属性满足，消息可以带有额外的属性
+	 */
+	public boolean match(Message message) {
+		if (keys.length == 0) {
+			return true;
+		}
+		Map<String, String> properties = message.getProperties();
+		for (int i = 0; i < keys.length; i++) {
+			String value = properties.get(keys[i]);
+			if (value == null || value.equals(values[i]) == false) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
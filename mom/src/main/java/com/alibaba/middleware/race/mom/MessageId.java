@@ -0,0 +1,66 @@
+package com.alibaba.middleware.race.mom;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 128 位消息 id：高 64 位为进程启动时随机生成的节点号，低 64 位为进程内递增的序号，不同进程之间不会重复。
+ * 帧中以两个 long 定长存放，内部按 long 比较和索引，只在显示时转成 32 位十六进制字符串。
+ * 全为 0 表示没有 id
+ */
+final class MessageId {
+	static final long NODE = node();
+
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+	private MessageId() {
+	}
+
+	private static long node() {
+		long node = 0;
+		while (node == 0) {
+			node = new SecureRandom().nextLong();
+		}
+		return node;
+	}
+
+	/**
+	 * @return 本进程内的下一个序号，与 NODE 一起构成消息 id
+	 */
+	public static long next() {
+		return sequence.incrementAndGet();
+	}
+
+	public static String toString(long high, long low) {
+		char[] chars = new char[32];
+		for (int i = 15; i >= 0; i--) {
+			chars[i] = DIGITS[(int) (high & 0xF)];
+			chars[i + 16] = DIGITS[(int) (low & 0xF)];
+			high >>>= 4;
+			low >>>= 4;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * 解析 toString 的结果，其他格式的字符串（包括旧版的十进制序号）按十进制解析为低 64 位，都不是时返回 null
+	 *
+	 * @return {high, low}
+	 */
+	public static long[] parse(String msgId) {
+		try {
+			if (msgId.length() == 32) {
+				return new long[] { parseHex(msgId, 0), parseHex(msgId, 16) };
+			}
+			return new long[] { 0, Long.parseLong(msgId) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static long parseHex(String string, int start) { // 16 位十六进制，最高位可能为 1
+		return Long.parseLong(string.substring(start, start + 8), 16) << 32
+				| Long.parseLong(string.substring(start + 8, start + 16), 16);
+	}
+}
@@ -0,0 +1,9 @@
+package com.alibaba.middleware.race.mom;
+
+/**
+ * 同一消费者组内的消息分配方式
+ */
+public enum MessageModel {
+	CLUSTERING, // 集群消费，组内每条消息只推送给一个成员
+	BROADCASTING // 广播消费，组内每个成员都收到全部消息
+}
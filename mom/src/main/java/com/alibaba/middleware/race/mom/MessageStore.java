@@ -0,0 +1,451 @@
+package com.alibaba.middleware.race.mom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.Unpooled;
+
+/**
+ * 消息存储：所有 topic 共用一个 commit log，每个 topic 一个消费队列索引。
+ *
+ * <pre>
+ * store/commitlog/{baseOffset}
+ * store/consumequeue/{topic}/{baseOffset}
+ * store/timeindex/{topic}     每 mom.timeIndexInterval 条消息一个 (最大 bornTime, 逻辑偏移)
+ * store/checkpoint            该偏移之前的消费队列条目均已落盘
+ * store/consumeroffset        各订阅已确认到的逻辑偏移
+ * </pre>
+ */
+class MessageStore {
+	public interface PutCallback {
+		/**
+		 * @param queueOffset
+		 *            消息在 topic 消费队列中的逻辑偏移
+		 */
+		void onComplete(long queueOffset, boolean success);
+	}
+
+	public interface BatchCallback {
+		/**
+		 * @param queueOffsets
+		 *            批内每条消息在各自 topic 消费队列中的逻辑偏移
+		 */
+		void onComplete(long[] queueOffsets, boolean success);
+	}
+
+	public interface CheckpointListener {
+		/**
+		 * 写入消费进度之前调用，用于提交各订阅当前的确认位置
+		 */
+		void beforeCheckpoint();
+	}
+
+	private static Charset charset = Charset.forName("UTF-8");
+
+	private final File root;
+	private final File consumeQueueDir;
+	private final File timeIndexDir;
+	private final CommitLog commitLog;
+	private final ConcurrentHashMap<String, ConsumeQueue> consumeQueues = new ConcurrentHashMap<String, ConsumeQueue>();
+	private final ConcurrentHashMap<String, Long> consumerOffsets = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentHashMap<String, long[]> consumerAcked = new ConcurrentHashMap<String, long[]>(); // 确认位置之后已确认的区间
+	private final long checkpointInterval;
+	private volatile long dispatchedOffset; // 该偏移之前的记录均已写入消费队列
+	private ScheduledExecutorService scheduler;
+	private volatile CheckpointListener checkpointListener;
+
+	public MessageStore(File root) throws Exception {
+		this.root = root;
+		this.commitLog = new CommitLog(new File(root, "commitlog"));
+		this.consumeQueueDir = new File(root, "consumequeue");
+		this.timeIndexDir = new File(root, "timeindex");
+		this.checkpointInterval = Long.getLong("mom.checkpointInterval", 1000);
+
+		if (consumeQueueDir.exists() == false) {
+			consumeQueueDir.mkdirs();
+		}
+		if (timeIndexDir.exists() == false) {
+			timeIndexDir.mkdirs();
+		}
+		for (File dir : consumeQueueDir.listFiles()) {
+			consumeQueues.put(dir.getName(), new ConsumeQueue(dir, new TimeIndex(new File(timeIndexDir, dir.getName()))));
+		}
+		recover();
+	}
+
+	/**
+	 * 丢弃 checkpoint 之后的消费队列条目，由 commit log 校验后重新回放。时间索引随消费队列截断，
+	 * 最后一个条目之后的消息从 commit log 读出 bornTime 补回
+	 */
+	private void recover() throws Exception {
+		long start = System.currentTimeMillis();
+		long checkpoint = readCheckpoint();
+		for (ConsumeQueue consumeQueue : consumeQueues.values()) {
+			consumeQueue.truncate(checkpoint);
+			TimeIndex timeIndex = consumeQueue.getTimeIndex();
+			long maxOffset = consumeQueue.getMaxOffset();
+			for (long i = Math.max(timeIndex.truncate(maxOffset), consumeQueue.getMinOffset()); i < maxOffset; i++) {
+				ByteBuffer data = commitLog.read(consumeQueue.getOffset(i), consumeQueue.getSize(i));
+				timeIndex.put(i, data == null ? Long.MIN_VALUE : readBornTime(data));
+			}
+		}
+
+		commitLog.recover(checkpoint, new CommitLog.RecordVisitor() {
+			@Override
+			public void onRecord(long offset, ByteBuffer data) {
+				try {
+					index(offset, data, null);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		dispatchedOffset = commitLog.getMaxOffset();
+		readConsumerOffsets();
+
+		System.out.println("恢复完成 @" + checkpoint + "-" + dispatchedOffset + " 耗时 "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * 为一条 commit log 记录写消费队列条目。批量记录中的每条消息各占一个条目，
+	 * 条目偏移指向批内的消息帧（减去记录头，按普通记录读取即可）
+	 *
+	 * @param queueOffsets
+	 *            不为 null 时依次填入各条消息的逻辑偏移
+	 */
+	private void index(long offset, ByteBuffer data, long[] queueOffsets) throws IOException {
+		if (data.get(data.position() + 4) != Frame.BATCH) {
+			long queueOffset = getConsumeQueue(readTopic(data)).put(offset, data.remaining(), readBornTime(data));
+			if (queueOffsets != null) {
+				queueOffsets[0] = queueOffset;
+			}
+			return;
+		}
+
+		int count = data.getInt(data.position() + 4 + 1);
+		int position = 4 + 1 + 4; // 长度、opcode、count
+		for (int i = 0; i < count; i++) {
+			ByteBuffer message = data.duplicate();
+			message.position(data.position() + position);
+			int size = 4 + message.getInt(message.position());
+			long queueOffset = getConsumeQueue(readTopic(message)).put(offset + position, size, readBornTime(message));
+			if (queueOffsets != null) {
+				queueOffsets[i] = queueOffset;
+			}
+			position += size;
+		}
+	}
+
+	private static long readBornTime(ByteBuffer data) {
+		return data.getLong(data.position() + 4 + 1 + 16); // 长度、opcode、msgId
+	}
+
+	private static String readTopic(ByteBuffer data) {
+		int position = data.position() + 4 + 1 + 16 + 8; // 长度、opcode、msgId、bornTime
+		int length = Math.max(data.getShort(position), 0); // 没有 topic（长度 -1）与空串一样归入同一个队列
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = data.duplicate();
+		buffer.position(position + 2);
+		buffer.get(bytes);
+		return new String(bytes, charset);
+	}
+
+	public void start() {
+		commitLog.start();
+
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void setCheckpointListener(CheckpointListener checkpointListener) {
+		this.checkpointListener = checkpointListener;
+	}
+
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		commitLog.shutdown();
+		try {
+			checkpoint();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (ConsumeQueue consumeQueue : consumeQueues.values()) {
+			consumeQueue.close();
+		}
+	}
+
+	/**
+	 * 先刷消费队列再写 checkpoint，checkpoint 不超过 commit log 已 force 的位置
+	 */
+	private synchronized void checkpoint() throws IOException {
+		long offset = Math.min(dispatchedOffset, commitLog.getFlushedOffset());
+		for (ConsumeQueue consumeQueue : consumeQueues.values()) {
+			consumeQueue.flush();
+		}
+
+		File file = new File(root, "checkpoint");
+		File temp = new File(root, "checkpoint.tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeLong(offset);
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		temp.renameTo(file);
+
+		if (checkpointListener != null) {
+			checkpointListener.beforeCheckpoint();
+		}
+		writeConsumerOffsets();
+	}
+
+	private long readCheckpoint() throws IOException {
+		File file = new File(root, "checkpoint");
+		if (file.exists() == false) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readLong();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeConsumerOffsets() throws IOException {
+		File file = new File(root, "consumeroffset");
+		File temp = new File(root, "consumeroffset.tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(-1); // 格式版本，旧格式此处为订阅数
+			data.writeInt(consumerOffsets.size());
+			for (Map.Entry<String, Long> entry : consumerOffsets.entrySet()) {
+				data.writeUTF(entry.getKey());
+				data.writeLong(entry.getValue());
+				long[] acked = consumerAcked.get(entry.getKey());
+				data.writeInt(acked == null ? 0 : acked.length);
+				if (acked != null) {
+					for (long offset : acked) {
+						data.writeLong(offset);
+					}
+				}
+			}
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		temp.renameTo(file);
+	}
+
+	private void readConsumerOffsets() throws IOException {
+		File file = new File(root, "consumeroffset");
+		if (file.exists() == false) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			int version = in.readInt();
+			int count = version < 0 ? in.readInt() : version;
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				consumerOffsets.put(key, in.readLong());
+				if (version < 0) {
+					long[] acked = new long[in.readInt()];
+					for (int j = 0; j < acked.length; j++) {
+						acked[j] = in.readLong();
+					}
+					consumerAcked.put(key, acked);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return 订阅已确认到的逻辑偏移，未知的订阅返回 -1
+	 */
+	public long getConsumerOffset(String topic, String groupId) {
+		Long offset = consumerOffsets.get(topic + "@" + groupId);
+		return offset == null ? -1 : Math.min(offset, getMaxOffset(topic));
+	}
+
+	/**
+	 * @return 订阅确认位置之后已确认的区间 {start, end, start, end, ...}，只保留存储中仍存在的部分，
+	 *         重启后推送时跳过
+	 */
+	public long[] getConsumerAcked(String topic, String groupId) {
+		long[] acked = consumerAcked.get(topic + "@" + groupId);
+		if (acked == null) {
+			return new long[0];
+		}
+		long maxOffset = getMaxOffset(topic);
+		int length = 0;
+		while (length < acked.length && acked[length] < maxOffset) {
+			length += 2;
+		}
+		acked = Arrays.copyOf(acked, length);
+		if (length > 0) {
+			acked[length - 1] = Math.min(acked[length - 1], maxOffset);
+		}
+		return acked;
+	}
+
+	/**
+	 * 记录订阅的确认位置和之后已确认的区间，随 checkpoint 一起持久化
+	 */
+	public void commitConsumerOffset(String topic, String groupId, long offset, long[] acked) {
+		consumerOffsets.put(topic + "@" + groupId, offset);
+		consumerAcked.put(topic + "@" + groupId, acked);
+	}
+
+	public void put(final String topic, ByteBuffer data, final PutCallback callback) {
+		final int size = data.remaining();
+		final long bornTime = readBornTime(data);
+		commitLog.append(data, new CommitLog.AppendCallback() {
+			@Override
+			public void onComplete(long offset, boolean success) {
+				if (success == false) {
+					callback.onComplete(-1, false);
+					return;
+				}
+				try {
+					long queueOffset = getConsumeQueue(topic).put(offset, size, bornTime);
+					dispatchedOffset = offset + CommitLog.HEADER_SIZE + size;
+					callback.onComplete(queueOffset, true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					callback.onComplete(-1, false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 整批作为一条记录追加，一次校验、一次刷盘，恢复时要么全部保留要么全部丢弃
+	 */
+	public void putBatch(final ByteBuffer data, final BatchCallback callback) {
+		final ByteBuffer frame = data.duplicate();
+		final int size = data.remaining();
+		commitLog.append(data, new CommitLog.AppendCallback() {
+			@Override
+			public void onComplete(long offset, boolean success) {
+				if (success == false) {
+					callback.onComplete(null, false);
+					return;
+				}
+				try {
+					long[] queueOffsets = new long[frame.getInt(frame.position() + 4 + 1)];
+					index(offset, frame, queueOffsets);
+					dispatchedOffset = offset + CommitLog.HEADER_SIZE + size;
+					callback.onComplete(queueOffsets, true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					callback.onComplete(null, false);
+				}
+			}
+		});
+	}
+
+	public ConsumeQueue getConsumeQueue(String topic) throws IOException {
+		ConsumeQueue consumeQueue = consumeQueues.get(topic);
+		if (consumeQueue == null) {
+			synchronized (consumeQueues) {
+				consumeQueue = consumeQueues.get(topic);
+				if (consumeQueue == null) {
+					consumeQueue = new ConsumeQueue(new File(consumeQueueDir, topic), new TimeIndex(new File(timeIndexDir, topic)));
+					consumeQueues.put(topic, consumeQueue);
+				}
+			}
+		}
+		return consumeQueue;
+	}
+
+	public Set<String> getTopics() {
+		return consumeQueues.keySet();
+	}
+
+	public long getMinOffset(String topic) {
+		ConsumeQueue consumeQueue = consumeQueues.get(topic);
+		return consumeQueue == null ? 0 : consumeQueue.getMinOffset();
+	}
+
+	public long getMaxOffset(String topic) {
+		ConsumeQueue consumeQueue = consumeQueues.get(topic);
+		return consumeQueue == null ? 0 : consumeQueue.getMaxOffset();
+	}
+
+	/**
+	 * 按逻辑偏移从映射文件读取消息，只解析头部，推送时直接引用映射区，不经过堆上的缓存
+	 */
+	public Frame getMessage(String topic, long queueOffset) {
+		ByteBuffer data = read(topic, queueOffset);
+		if (data == null) {
+			return null;
+		}
+		return Frame.readHeader(Unpooled.wrappedBuffer(data));
+	}
+
+	/**
+	 * 按时间索引二分定位到不超过 mom.timeIndexInterval 条的区间，再在区间内顺序读出 bornTime
+	 *
+	 * @return 第一条 bornTime 不小于 time 的消息的逻辑偏移，之前的消息 bornTime 均小于 time；都小于时返回队尾
+	 */
+	public long getOffsetByTime(String topic, long time) {
+		ConsumeQueue consumeQueue = consumeQueues.get(topic);
+		if (consumeQueue == null) {
+			return 0;
+		}
+		long[] range = consumeQueue.getTimeIndex().lookup(time);
+		long maxOffset = consumeQueue.getMaxOffset();
+		long end = range[1] < 0 ? maxOffset : Math.min(range[1], maxOffset);
+		for (long i = Math.max(range[0], consumeQueue.getMinOffset()); i < end; i++) {
+			ByteBuffer data = read(topic, i);
+			if (data != null && readBornTime(data) >= time) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * @return 消息的原始帧（含长度前缀），是映射区的视图，不存在时返回 null
+	 */
+	public ByteBuffer read(String topic, long queueOffset) {
+		ConsumeQueue consumeQueue = consumeQueues.get(topic);
+		if (consumeQueue == null || queueOffset < consumeQueue.getMinOffset() || queueOffset >= consumeQueue.getMaxOffset()) {
+			return null;
+		}
+		return commitLog.read(consumeQueue.getOffset(queueOffset), consumeQueue.getSize(queueOffset));
+	}
+}
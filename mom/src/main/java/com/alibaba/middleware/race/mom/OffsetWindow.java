@@ -0,0 +1,118 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.Arrays;
+
+/**
+ * 订阅的确认位置：从 base 起每个逻辑偏移一个状态字节的环形数组，记录已推送未确认和已确认的消息。
+ * base 之前的消息均已处理，推进时回收已确认的状态，停在第一条未确认的推送上。
+ * 容量按 2 倍扩容，只有某条消息长期未确认、之后的消息持续确认时才会变大，每条消息一个字节。不是线程安全的
+ */
+class OffsetWindow {
+	static final byte NONE = 0;
+	static final byte INFLIGHT = 1; // 已推送未确认
+	static final byte ACKED = 2; // 已确认
+
+	private byte[] states = new byte[1024];
+	private int head; // base 的下标
+	private long base;
+	private long end; // 之后的偏移都是 NONE
+
+	public OffsetWindow(long base) {
+		reset(base);
+	}
+
+	private int index(long offset) {
+		return (int) ((head + (offset - base)) & (states.length - 1));
+	}
+
+	public byte get(long offset) {
+		if (offset < base || offset >= end) {
+			return NONE;
+		}
+		return states[index(offset)];
+	}
+
+	/**
+	 * base 之前的偏移已处理，忽略
+	 */
+	public void set(long offset, byte state) {
+		if (offset < base) {
+			return;
+		}
+		while (offset - base >= states.length) {
+			grow();
+		}
+		states[index(offset)] = state;
+		end = Math.max(end, offset + 1);
+	}
+
+	/**
+	 * 把状态为 state 的偏移都改回 NONE
+	 */
+	public void clear(byte state) {
+		for (long offset = base; offset < end; offset++) {
+			if (states[index(offset)] == state) {
+				states[index(offset)] = NONE;
+			}
+		}
+	}
+
+	/**
+	 * @return 已确认的区间 {start, end, start, end, ...}，按偏移递增
+	 */
+	public long[] acked() {
+		long[] ranges = new long[0];
+		int length = 0;
+		for (long offset = base; offset < end; offset++) {
+			if (states[index(offset)] != ACKED) {
+				continue;
+			}
+			if (length > 0 && ranges[length - 1] == offset) {
+				ranges[length - 1] = offset + 1;
+				continue;
+			}
+			if (length == ranges.length) {
+				ranges = Arrays.copyOf(ranges, Math.max(length * 2, 8));
+			}
+			ranges[length++] = offset;
+			ranges[length++] = offset + 1;
+		}
+		return Arrays.copyOf(ranges, length);
+	}
+
+	/**
+	 * 推进到第一条未确认的推送，最多到 limit
+	 *
+	 * @return 推进后的 base
+	 */
+	public long advance(long limit) {
+		while (base < limit && base < end && states[head] != INFLIGHT) {
+			states[head] = NONE;
+			head = (head + 1) & (states.length - 1);
+			base++;
+		}
+		if (base < limit && base >= end) { // 之后没有记录，直接跳过
+			base = limit;
+			end = limit;
+		}
+		return base;
+	}
+
+	/**
+	 * 清除所有记录，从 base 重新开始
+	 */
+	public void reset(long base) {
+		Arrays.fill(states, NONE);
+		this.head = 0;
+		this.base = base;
+		this.end = base;
+	}
+
+	private void grow() {
+		byte[] grown = new byte[states.length * 2];
+		System.arraycopy(states, head, grown, 0, states.length - head);
+		System.arraycopy(states, 0, grown, states.length - head, head);
+		head = 0;
+		states = grown;
+	}
+}
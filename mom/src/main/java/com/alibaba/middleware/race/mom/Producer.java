@@ -1,5 +1,7 @@
 package com.alibaba.middleware.race.mom;
 
+import java.util.List;
+
 public interface Producer {
 	/**
 	 * 启动生产者，初始化底层资源。在所有属性设置完毕后，才能调用这个方法
@@ -27,6 +29,18 @@ public interface Producer {
      * @param callback
      */
 	void asyncSendMessage(Message message,SendCallback callback);
+	/**
+	 * 批量发送消息，整批在一个帧中发送、作为一条记录原子写入，broker 只返回一次ack
+	 * @param messages
+	 * @return 与 messages 一一对应的发送结果
+	 */
+	List<SendResult> sendMessages(List<Message> messages);
+	/**
+	 * 异步批量发送消息，当前线程不阻塞。broker返回ack后，对每条消息触发一次callback
+	 * @param messages
+	 * @param callback
+	 */
+	void asyncSendMessages(List<Message> messages, SendCallback callback);
 	/**
 	 * 停止生产者，销毁资源
 	 */
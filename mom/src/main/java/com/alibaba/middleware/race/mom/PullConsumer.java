@@ -0,0 +1,40 @@
+package com.alibaba.middleware.race.mom;
+
+/**
+ * 拉取方式的消费者，由调用方控制消费节奏并自行保存消费位置，broker 不记录进度也不推送
+ */
+public interface PullConsumer {
+	/**
+	 * 启动消费者，初始化底层资源
+	 */
+	void start();
+
+	/**
+	 * 从 topic 的逻辑偏移 offset 开始拉取消息，一次响应可以带回多条。没有新消息时 broker 挂起请求，
+	 * 有新消息写入或等待 maxWait 毫秒后返回
+	 * 
+	 * @param topic
+	 * @param offset
+	 *            第一次拉取可以传 0，之后传上一次结果的 nextOffset
+	 * @param maxMessages
+	 *            本次最多返回的消息数
+	 * @param maxWait
+	 *            没有新消息时最多等待的毫秒数，0 表示立即返回
+	 * @return
+	 */
+	PullResult pull(String topic, long offset, int maxMessages, long maxWait);
+
+	/**
+	 * 按 bornTime 定位，用于从某个时间点开始重新拉取，由 broker 的稀疏时间索引查找，不扫描整个 topic
+	 * 
+	 * @param topic
+	 * @param timestamp
+	 * @return 第一条 bornTime 不早于 timestamp 的消息的逻辑偏移，之后没有这样的消息时为 topic 的最大偏移；失败时返回 -1
+	 */
+	long getOffsetByTime(String topic, long timestamp);
+
+	/**
+	 * 停止消费者，销毁资源
+	 */
+	void stop();
+}
@@ -0,0 +1,53 @@
+package com.alibaba.middleware.race.mom;
+
+import java.util.Collections;
+import java.util.List;
+
+public class PullResult {
+	public String getInfo() {
+		return info;
+	}
+	public void setInfo(String info) {
+		this.info = info;
+	}
+	public PullStatus getStatus() {
+		return status;
+	}
+	public void setStatus(PullStatus status) {
+		this.status = status;
+	}
+	public List<Message> getMessages() {
+		return messages;
+	}
+	public void setMessages(List<Message> messages) {
+		this.messages = messages;
+	}
+	/**
+	 * @return 下一次拉取的起始偏移
+	 */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+	public void setNextOffset(long nextOffset) {
+		this.nextOffset = nextOffset;
+	}
+	/**
+	 * @return 返回时 topic 的最大逻辑偏移，与 nextOffset 之差即为积压
+	 */
+	public long getMaxOffset() {
+		return maxOffset;
+	}
+	public void setMaxOffset(long maxOffset) {
+		this.maxOffset = maxOffset;
+	}
+	private String info;
+	private PullStatus status;
+	private List<Message> messages = Collections.emptyList();
+	private long nextOffset;
+	private long maxOffset;
+	@Override
+	public String toString(){
+		return "pull "+status+" "+messages.size()+" messages, next offset "+nextOffset+"/"+maxOffset+"   info:"+info;
+	}
+	
+}
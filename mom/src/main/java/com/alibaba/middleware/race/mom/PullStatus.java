@@ -0,0 +1,7 @@
+package com.alibaba.middleware.race.mom;
+
+public enum PullStatus {
+	FOUND, // 带回了消息
+	NO_NEW_MESSAGE, // 等待期间没有新消息
+	FAIL
+}
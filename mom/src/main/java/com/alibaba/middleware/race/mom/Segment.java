@@ -0,0 +1,141 @@
+package com.alibaba.middleware.race.mom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * 定长分段文件，文件名为该段起始的全局偏移。创建时预分配并整体映射，读写都走 MappedByteBuffer
+ */
+class Segment {
+	private final long baseOffset;
+	private final int size;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel fileChannel;
+	private final MappedByteBuffer mappedByteBuffer;
+	private volatile int position;
+
+	public Segment(File dir, long baseOffset, int size) throws IOException {
+		this.baseOffset = baseOffset;
+		this.size = size;
+		this.file = new File(dir, fileName(baseOffset));
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.fileChannel = randomAccessFile.getChannel();
+		this.mappedByteBuffer = fileChannel.map(MapMode.READ_WRITE, 0, size);
+	}
+
+	public static String fileName(long offset) {
+		return String.format("%020d", offset);
+	}
+
+	public long getBaseOffset() {
+		return baseOffset;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public void setPosition(int position) {
+		this.position = position;
+	}
+
+	public int remaining() {
+		return size - position;
+	}
+
+	public boolean contains(long offset) {
+		return offset >= baseOffset && offset < baseOffset + size;
+	}
+
+	/**
+	 * 整批数据依次拷贝进映射区，只由刷盘线程调用
+	 */
+	public void write(ByteBuffer[] buffers, int length) {
+		ByteBuffer buffer = mappedByteBuffer.duplicate();
+		buffer.position(position);
+		for (ByteBuffer data : buffers) {
+			buffer.put(data);
+		}
+		position += length;
+	}
+
+	/**
+	 * 返回 [position, position + length) 的只读视图，数据直接来自 page cache
+	 */
+	public ByteBuffer read(int position, int length) {
+		ByteBuffer buffer = mappedByteBuffer.duplicate();
+		buffer.position(position);
+		buffer.limit(position + length);
+		return buffer.slice().asReadOnlyBuffer();
+	}
+
+	public int getInt(int position) {
+		return mappedByteBuffer.getInt(position);
+	}
+
+	public long getLong(int position) {
+		return mappedByteBuffer.getLong(position);
+	}
+
+	public void force() {
+		mappedByteBuffer.force();
+	}
+
+	/**
+	 * 将 [position, end) 中残留的数据清零，end 由调用方按自己的格式确定，不扫描分段的其余部分
+	 * 
+	 * @return 是否存在残留数据
+	 */
+	public boolean truncate(int position, int end) {
+		boolean dirty = false;
+		end = Math.min(end, size);
+		int aligned = Math.min((position + 7) & ~7, end);
+		for (int i = position; i < aligned; i++) {
+			if (mappedByteBuffer.get(i) != 0) {
+				mappedByteBuffer.put(i, (byte) 0);
+				dirty = true;
+			}
+		}
+		int i = aligned;
+		for (; i + 8 <= end; i += 8) {
+			if (mappedByteBuffer.getLong(i) != 0) {
+				mappedByteBuffer.putLong(i, 0);
+				dirty = true;
+			}
+		}
+		for (; i < end; i++) {
+			if (mappedByteBuffer.get(i) != 0) {
+				mappedByteBuffer.put(i, (byte) 0);
+				dirty = true;
+			}
+		}
+		if (dirty) {
+			mappedByteBuffer.force();
+		}
+		return dirty;
+	}
+
+	public void delete() {
+		close();
+		file.delete();
+	}
+
+	public void close() {
+		try {
+			fileChannel.close();
+			randomAccessFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
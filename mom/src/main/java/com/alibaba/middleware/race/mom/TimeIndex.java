@@ -0,0 +1,132 @@
+package com.alibaba.middleware.race.mom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 单个 topic 的稀疏时间索引，每 interval 条消息一个定长条目：
+ *
+ * <pre>
+ * long  该逻辑偏移之前所有消息的最大 bornTime
+ * long  逻辑偏移
+ * </pre>
+ *
+ * bornTime 由生产者设置，不保证递增，记录前缀最大值使条目单调。条目在文件中顺序追加，同时保留在内存中，
+ * 按时间查找是一次二分，得到不超过 interval 条的区间，再由调用方在区间内顺序读
+ */
+class TimeIndex {
+	static final int ENTRY_SIZE = 16;
+
+	private final int interval;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel fileChannel;
+	private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+	private long[] times = new long[64];
+	private long[] offsets = new long[64];
+	private int size;
+	private long maxTime = Long.MIN_VALUE; // 已索引消息的最大 bornTime
+
+	public TimeIndex(File file) throws IOException {
+		this(file, Integer.getInteger("mom.timeIndexInterval", 1024));
+	}
+
+	public TimeIndex(File file, int interval) throws IOException {
+		this.interval = interval;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.fileChannel = randomAccessFile.getChannel();
+
+		ByteBuffer data = ByteBuffer.allocate((int) (fileChannel.size() / ENTRY_SIZE * ENTRY_SIZE));
+		while (data.hasRemaining() && fileChannel.read(data, data.position()) > 0) {
+		}
+		data.flip();
+		while (data.remaining() >= ENTRY_SIZE) {
+			add(data.getLong(), data.getLong());
+		}
+		fileChannel.position((long) size * ENTRY_SIZE);
+	}
+
+	private void add(long time, long offset) {
+		if (size == times.length) {
+			times = Arrays.copyOf(times, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+		}
+		times[size] = time;
+		offsets[size] = offset;
+		size++;
+	}
+
+	/**
+	 * 记录一条消息，逢 interval 的整数倍写一个条目。只由写消费队列的线程按逻辑偏移顺序调用
+	 */
+	public synchronized void put(long queueOffset, long bornTime) throws IOException {
+		if (queueOffset % interval == 0) {
+			entry.clear();
+			entry.putLong(maxTime).putLong(queueOffset);
+			entry.flip();
+			while (entry.hasRemaining()) {
+				fileChannel.write(entry);
+			}
+			add(maxTime, queueOffset);
+		}
+		maxTime = Math.max(maxTime, bornTime);
+	}
+
+	/**
+	 * 删除 maxOffset 及之后的条目，与消费队列一起截断。最后一个保留的条目也删除，
+	 * 调用方从返回的逻辑偏移起把之后消息的 bornTime 依次交给 put，补回条目和最大 bornTime；
+	 * 索引文件不存在时返回 0，即整个重建
+	 */
+	public synchronized long truncate(long maxOffset) throws IOException {
+		while (size > 0 && offsets[size - 1] >= maxOffset) {
+			size--;
+		}
+		long offset = 0;
+		maxTime = Long.MIN_VALUE;
+		if (size > 0) {
+			size--;
+			offset = offsets[size];
+			maxTime = times[size];
+		}
+		fileChannel.truncate((long) size * ENTRY_SIZE);
+		fileChannel.position((long) size * ENTRY_SIZE);
+		return offset;
+	}
+
+	/**
+	 * @return {start, end}：start 之前的消息 bornTime 均小于 time，第一条不小于 time 的消息在 [start, end) 中；
+	 *         end 为 -1 表示到队尾
+	 */
+	public synchronized long[] lookup(long time) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) { // 最后一个最大 bornTime 小于 time 的条目
+			int mid = (low + high) >>> 1;
+			if (times[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (high < 0) {
+			return new long[] { 0, size == 0 ? -1 : offsets[0] };
+		}
+		return new long[] { offsets[high], high + 1 < size ? offsets[high + 1] : -1 };
+	}
+
+	public void flush() throws IOException {
+		fileChannel.force(false);
+	}
+
+	public void close() {
+		try {
+			fileChannel.close();
+			randomAccessFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.alibaba.middleware.race.mom;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * broker 与客户端共用的 Netty 传输选择。
+ * -Dmom.epoll=true 且能加载 epoll 原生库（仅 Linux）时使用 epoll（边沿触发），否则回落到 NIO。
+ * epoll 原生读写只接受直接内存，Netty 在当前 JVM 上不能使用直接内存时同样回落
+ */
+final class Transport {
+	public static final boolean EPOLL = useEpoll();
+	public static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("mom.tcpNoDelay", "true"));
+
+	private Transport() {
+	}
+
+	private static boolean useEpoll() {
+		if (Boolean.getBoolean("mom.epoll") == false) {
+			return false;
+		}
+		if (Epoll.isAvailable() && PlatformDependent.directBufferPreferred()) {
+			return true;
+		}
+		System.out.println("epoll 不可用，使用 NIO");
+		return false;
+	}
+
+	/**
+	 * @param threads
+	 *            0 表示使用 Netty 默认线程数
+	 */
+	public static EventLoopGroup newGroup(int threads) {
+		return EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+	}
+
+	public static Class<? extends ServerChannel> serverChannel() {
+		return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+	}
+
+	public static Class<? extends SocketChannel> channel() {
+		return EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+	}
+}
@@ -0,0 +1,227 @@
+package com.alibaba.middleware.race.mom;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.alibaba.middleware.race.momtest.FileIO;
+import com.alibaba.middleware.race.momtest.TestResult;
+
+/**
+ * 用很小的分段让 commit log 多次滚动，逐条读回校验；再弄坏最后一条记录，从中间的 checkpoint 恢复。
+ * CommitLog 包内可见，所以放在 mom 包下
+ */
+public class CommitLogTest {
+	private static final int SEGMENT_SIZE = 1024;
+	private static final int COUNT = 500;
+	private static Random random = new Random();
+	private static TestResult testResult = new TestResult();
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "commitlog-test-" + System.nanoTime());
+		try {
+			testRollRead(dir);
+			delete(dir);
+			if (testResult.isSuccess()) {
+				testRecover(dir);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			testResult.setSuccess(false);
+			testResult.setInfo(e.toString());
+		} finally {
+			delete(dir);
+		}
+		System.out.println(testResult);
+		FileIO.write(testResult.toString());
+		Runtime.getRuntime().exit(0);
+	}
+
+	private static void testRollRead(File dir) throws Exception {
+		CommitLog commitLog = open(dir);
+		commitLog.start();
+		ByteBuffer[] frames = new ByteBuffer[COUNT];
+		long[] offsets;
+		try {
+			offsets = append(commitLog, frames);
+			if (testResult.isSuccess()) {
+				check(commitLog, offsets, frames, COUNT);
+			}
+		} finally {
+			commitLog.shutdown();
+		}
+		if (testResult.isSuccess() == false) {
+			return;
+		}
+
+		if (dir.list().length < 2) {
+			testResult.setSuccess(false);
+			testResult.setInfo("commit log did not roll, segments: " + dir.list().length);
+			return;
+		}
+		commitLog = open(dir);
+		try {
+			commitLog.recover(offsets[COUNT - 1], new CommitLog.RecordVisitor() {
+				@Override
+				public void onRecord(long offset, ByteBuffer data) {
+				}
+			});
+			check(commitLog, offsets, frames, COUNT);
+		} finally {
+			commitLog.shutdown();
+		}
+	}
+
+	private static void testRecover(File dir) throws Exception {
+		CommitLog commitLog = open(dir);
+		commitLog.start();
+		ByteBuffer[] frames = new ByteBuffer[COUNT];
+		long[] offsets;
+		try {
+			offsets = append(commitLog, frames);
+		} finally {
+			commitLog.shutdown();
+		}
+		if (testResult.isSuccess() == false) {
+			return;
+		}
+
+		long torn = offsets[COUNT - 1];
+		corrupt(dir, torn);
+		int checkpoint = COUNT / 2;
+		final List<Long> replayed = new ArrayList<Long>();
+		commitLog = open(dir);
+		try {
+			commitLog.recover(offsets[checkpoint], new CommitLog.RecordVisitor() {
+				@Override
+				public void onRecord(long offset, ByteBuffer data) {
+					replayed.add(offset);
+				}
+			});
+			if (commitLog.getMaxOffset() != torn) {
+				testResult.setSuccess(false);
+				testResult.setInfo("recovered max offset " + commitLog.getMaxOffset() + ", expected " + torn);
+				return;
+			}
+			List<Long> expected = new ArrayList<Long>();
+			for (int i = checkpoint; i < COUNT - 1; i++) {
+				expected.add(offsets[i]);
+			}
+			if (replayed.equals(expected) == false) {
+				testResult.setSuccess(false);
+				testResult.setInfo("replayed " + replayed.size() + " records, expected " + expected.size());
+				return;
+			}
+			check(commitLog, offsets, frames, COUNT - 1);
+			if (testResult.isSuccess() == false) {
+				return;
+			}
+
+			commitLog.start(); // 残缺的尾部已截掉，新记录接着有效末尾写
+			ByteBuffer[] appended = new ByteBuffer[1];
+			long[] offset = append(commitLog, appended);
+			if (offset[0] != torn) {
+				testResult.setSuccess(false);
+				testResult.setInfo("append after recover @" + offset[0] + ", expected " + torn);
+				return;
+			}
+			check(commitLog, offset, appended, 1);
+		} finally {
+			commitLog.shutdown();
+		}
+	}
+
+	/**
+	 * 改掉 offset 处记录的最后一个字节，让它通不过 crc 校验
+	 */
+	private static void corrupt(File dir, long offset) throws Exception {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		long base = 0;
+		for (String name : names) {
+			if (Long.parseLong(name) <= offset) {
+				base = Long.parseLong(name);
+			}
+		}
+		RandomAccessFile file = new RandomAccessFile(new File(dir, Segment.fileName(base)), "rw");
+		try {
+			int position = (int) (offset - base);
+			file.seek(position + CommitLog.HEADER_SIZE);
+			int last = position + CommitLog.HEADER_SIZE + 4 + file.readInt() - 1;
+			file.seek(last);
+			int b = file.read();
+			file.seek(last);
+			file.write(b ^ 0xFF);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static CommitLog open(File dir) throws Exception {
+		return new CommitLog(dir, SEGMENT_SIZE, CommitLog.FlushPolicy.GROUP, 0, 500);
+	}
+
+	/**
+	 * 追加 frames.length 条随机长度的帧，帧内容为序号
+	 *
+	 * @return 每条记录的全局偏移
+	 */
+	private static long[] append(CommitLog commitLog, ByteBuffer[] frames) throws InterruptedException {
+		final long[] offsets = new long[frames.length];
+		final CountDownLatch latch = new CountDownLatch(frames.length);
+		for (int i = 0; i < frames.length; i++) {
+			int length = 16 + random.nextInt(SEGMENT_SIZE / 4);
+			ByteBuffer frame = ByteBuffer.allocate(4 + length);
+			frame.putInt(length);
+			while (frame.hasRemaining()) {
+				frame.put((byte) i);
+			}
+			frame.flip();
+			frames[i] = frame;
+
+			final int index = i;
+			commitLog.append(frame.duplicate(), new CommitLog.AppendCallback() {
+				@Override
+				public void onComplete(long offset, boolean success) {
+					if (success == false) {
+						testResult.setSuccess(false);
+						testResult.setInfo("append " + index + " failed");
+					}
+					offsets[index] = offset;
+					latch.countDown();
+				}
+			});
+		}
+		latch.await();
+		return offsets;
+	}
+
+	/**
+	 * 按偏移读回前 count 条记录，与写入的帧比较
+	 */
+	private static void check(CommitLog commitLog, long[] offsets, ByteBuffer[] frames, int count) {
+		for (int i = 0; i < count; i++) {
+			ByteBuffer data = commitLog.read(offsets[i], frames[i].remaining());
+			if (data == null || data.equals(frames[i]) == false) {
+				testResult.setSuccess(false);
+				testResult.setInfo("record " + i + " @" + offsets[i] + " read back wrong: " + data);
+				return;
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
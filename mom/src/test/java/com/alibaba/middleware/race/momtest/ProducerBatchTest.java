@@ -0,0 +1,52 @@
+package com.alibaba.middleware.race.momtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.alibaba.middleware.race.mom.DefaultProducer;
+import com.alibaba.middleware.race.mom.Message;
+import com.alibaba.middleware.race.mom.Producer;
+import com.alibaba.middleware.race.mom.SendCallback;
+import com.alibaba.middleware.race.mom.SendResult;
+import com.alibaba.middleware.race.mom.SendStatus;
+
+public class ProducerBatchTest {
+	public static void main(String[] args) {
+		Producer producer=new DefaultProducer();
+		producer.setGroupId("PG-test");
+		producer.setTopic("T-test");
+		producer.start();
+		List<Message> messages=new ArrayList<Message>();
+		for (int i = 0; i < 100; i++) {
+			Message message=new Message();
+			message.setBody(("Hello MOM "+i).getBytes());
+			message.setProperty("area", "us");
+			messages.add(message);
+		}
+		//整批只有一次往返
+		List<SendResult> results=producer.sendMessages(messages);
+		for (SendResult result : results) {
+			if (result.getStatus().equals(SendStatus.SUCCESS)) {
+				System.out.println("send success:"+result.getMsgId());
+			}
+		}
+		
+		List<Message> asyncMessages=new ArrayList<Message>();
+		for (int i = 0; i < 100; i++) {
+			Message message=new Message();
+			message.setBody(("Hello MOM async "+i).getBytes());
+			message.setProperty("area", "us");
+			asyncMessages.add(message);
+		}
+		//调用此方法，当前线程不阻塞，每条消息回调一次
+		producer.asyncSendMessages(asyncMessages, new SendCallback() {
+			
+			@Override
+			public void onResult(SendResult result) {
+				if (result.getStatus().equals(SendStatus.SUCCESS)) {
+					System.out.println("send success:"+result.getMsgId());
+				}
+			}
+		});
+	}
+}
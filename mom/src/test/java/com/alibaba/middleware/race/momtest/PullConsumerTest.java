@@ -0,0 +1,31 @@
+package com.alibaba.middleware.race.momtest;
+
+import com.alibaba.middleware.race.mom.DefaultPullConsumer;
+import com.alibaba.middleware.race.mom.Message;
+import com.alibaba.middleware.race.mom.PullConsumer;
+import com.alibaba.middleware.race.mom.PullResult;
+import com.alibaba.middleware.race.mom.PullStatus;
+
+public class PullConsumerTest {
+	public static void main(String[] args) {
+		PullConsumer consumer = new DefaultPullConsumer();
+		consumer.start();
+		//消费位置由调用方保存，这里从头开始；也可以按时间定位，例如从一小时前开始：
+		//long offset = consumer.getOffsetByTime("T-test", System.currentTimeMillis() - 3600 * 1000);
+		long offset = 0;
+		for (int i = 0; i < 10; i++) {
+			//一次最多取回1000条，没有新消息时broker最多挂起3秒
+			PullResult result = consumer.pull("T-test", offset, 1000, 3000);
+			if (result.getStatus().equals(PullStatus.FAIL)) {
+				System.out.println("pull fail:" + result.getInfo());
+				continue;
+			}
+			for (Message message : result.getMessages()) {
+				System.out.println("pull success:" + message.getMsgId());
+			}
+			//下一次从nextOffset继续，getMaxOffset() - nextOffset 为剩余的积压
+			offset = result.getNextOffset();
+		}
+		consumer.stop();
+	}
+}